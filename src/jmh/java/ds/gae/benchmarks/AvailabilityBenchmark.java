@@ -0,0 +1,97 @@
+package ds.gae.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ds.gae.ReservationException;
+import ds.gae.entities.Car;
+import ds.gae.entities.CarRentalCompany;
+import ds.gae.entities.CarType;
+import ds.gae.helper.Quote;
+import ds.gae.helper.ReservationConstraints;
+
+/**
+ * Availability checks and quote pricing against an in-memory company.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AvailabilityBenchmark {
+
+    // a few years of history per car
+    private static final int DAYS = 3 * 365;
+
+    @Param({ "100", "5000" })
+    public int nbOfCars;
+
+    @Param({ "50", "300" })
+    public int reservationsPerCar;
+
+    private FleetFixture fixture;
+    private CarRentalCompany company;
+    private List<Car> cars;
+
+    private Date[][] periods;
+    private ReservationConstraints[] constraints;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void createCompany() {
+        fixture = new FleetFixture(DAYS);
+        company = fixture.createCompany("Hertz", nbOfCars, reservationsPerCar);
+        cars = new ArrayList<>(company.getCars());
+
+        periods = new Date[1024][];
+        constraints = new ReservationConstraints[periods.length];
+        for (int i = 0; i < periods.length; i++) {
+            periods[i] = fixture.randomPeriod();
+            constraints[i] = new ReservationConstraints(periods[i][0], periods[i][1],
+                    FleetFixture.CAR_TYPES[i % FleetFixture.CAR_TYPES.length]);
+        }
+    }
+
+    private int nextIndex() {
+        next = (next + 1) & (periods.length - 1);
+        return next;
+    }
+
+    @Benchmark
+    public boolean carIsAvailable() {
+        int i = nextIndex();
+        return cars.get(i % cars.size()).isAvailable(periods[i][0], periods[i][1]);
+    }
+
+    @Benchmark
+    public Set<CarType> getAvailableCarTypes() {
+        int i = nextIndex();
+        return company.getAvailableCarTypes(periods[i][0], periods[i][1]);
+    }
+
+    @Benchmark
+    public Quote createQuote() {
+        try {
+            return company.createQuote(constraints[nextIndex()], "bench@example.com");
+        } catch (ReservationException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package ds.gae.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Key;
+
+import ds.gae.entities.CarRentalCompany;
+
+/**
+ * In-memory car rental company for benchmarks: a catalog of car types, a fleet
+ * of cars and years of back-to-back reservations per car, built from entities
+ * without touching the datastore.
+ */
+public class FleetFixture {
+
+    static final long DAY = 1000 * 60 * 60 * 24L;
+
+    // 1 January 2018
+    static final long FIRST_DAY = 1514764800000L;
+
+    static final String[] CAR_TYPES = { "Compact", "Economy", "Mini", "Standard", "Premium", "Van", "SUV" };
+
+    private final Random random = new Random(42);
+
+    private final int days;
+
+    public FleetFixture(int days) {
+        this.days = days;
+    }
+
+    public CarRentalCompany createCompany(String name, int nbOfCars, int reservationsPerCar) {
+        Key crcKey = Key.newBuilder("distributed-systems-gae", "CarRentalCompany", name).build();
+        List<Entity> entities = new ArrayList<>();
+
+        for (int t = 0; t < CAR_TYPES.length; t++) {
+            entities.add(Entity.newBuilder(Key.newBuilder(crcKey, "CarType", CAR_TYPES[t]).build())
+                    .set("nbOfSeats", 2 + t)
+                    .set("trunkSpace", 100.0 + 50 * t)
+                    .set("rentalPricePerDay", 25.0 + 10 * t)
+                    .set("smokingAllowed", t % 2 == 0)
+                    .build());
+        }
+
+        long reservationId = 1;
+        for (int id = 1; id <= nbOfCars; id++) {
+            String type = CAR_TYPES[id % CAR_TYPES.length];
+            Key carKey = Key.newBuilder(crcKey, "Car", id).build();
+            entities.add(Entity.newBuilder(carKey)
+                    .set("reservations_made", reservationsPerCar)
+                    .set("carType", type)
+                    .build());
+
+            // back-to-back reservations with random gaps, spread over the whole period
+            long day = random.nextInt(7);
+            int spacing = Math.max(2, days / Math.max(1, reservationsPerCar));
+            for (int r = 0; r < reservationsPerCar && day < days; r++) {
+                long length = 1 + random.nextInt(Math.max(1, spacing - 1));
+                entities.add(Entity.newBuilder(Key.newBuilder(carKey, "Reservation", reservationId++).build())
+                        .set("renter", "renter" + random.nextInt(1000) + "@example.com")
+                        .set("startDate", FIRST_DAY + day * DAY)
+                        .set("endDate", FIRST_DAY + (day + length) * DAY - 1)
+                        .set("crc", name)
+                        .set("carType", type)
+                        .set("rentalPrice", 40.0 * length)
+                        .set("carId", id)
+                        .build());
+                day += length + random.nextInt(spacing);
+            }
+        }
+
+        return new CarRentalCompany(crcKey, entities.iterator());
+    }
+
+    /**
+     * @return a random period of one to fourteen days within the fixture
+     */
+    public Date[] randomPeriod() {
+        long start = FIRST_DAY + random.nextInt(days) * DAY;
+        long end = start + (1 + random.nextInt(14)) * DAY;
+        return new Date[] { new Date(start), new Date(end) };
+    }
+}
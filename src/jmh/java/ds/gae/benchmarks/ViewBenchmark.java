@@ -0,0 +1,113 @@
+package ds.gae.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ds.gae.helper.Quote;
+import ds.gae.view.Tools;
+
+/**
+ * Quote serialization, as done for session attributes and task payloads, and
+ * HTML encoding and date formatting of page content.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ViewBenchmark {
+
+    private Quote quote;
+    private byte[] serializedQuote;
+
+    private String plainText;
+    private String markupText;
+
+    // stands in for the JSP writer, reset after every invocation
+    private CharArrayWriter page;
+
+    @Setup
+    public void setUp() throws IOException {
+        quote = new Quote("test.user@kuleuven.be", new Date(FleetFixture.FIRST_DAY),
+                new Date(FleetFixture.FIRST_DAY + 7 * FleetFixture.DAY), "Hertz", "Compact", 308.0);
+        serializedQuote = serialize();
+
+        StringBuilder plain = new StringBuilder();
+        StringBuilder markup = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            plain.append("Reservation failed, all cars of type Compact are unavailable. ");
+            markup.append("<Hertz> \"Compact\" café\nno cars available für 01.12.2019\r\n");
+        }
+        plainText = plain.toString();
+        markupText = markup.toString();
+        page = new CharArrayWriter(4096);
+    }
+
+    @Benchmark
+    public byte[] serialize() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(quote);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Benchmark
+    public Object deserialize() throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serializedQuote))) {
+            return in.readObject();
+        }
+    }
+
+    @Benchmark
+    public String encodePlainText() {
+        return Tools.encodeHTML(plainText);
+    }
+
+    @Benchmark
+    public String encodeMarkup() {
+        return Tools.encodeHTML(markupText);
+    }
+
+    @Benchmark
+    public int encodeMarkupToWriter() throws IOException {
+        page.reset();
+        Tools.encodeHTML(page, markupText);
+        return page.size();
+    }
+
+    @Benchmark
+    public String formatDate() {
+        return Tools.formatDate(quote.getStartDate());
+    }
+
+    @Benchmark
+    public int writeDate() throws IOException {
+        page.reset();
+        Tools.writeDate(page, FleetFixture.FIRST_DAY);
+        return page.size();
+    }
+
+    @Benchmark
+    public Date parseDate() {
+        return Tools.parseDate("01.12.2019");
+    }
+}
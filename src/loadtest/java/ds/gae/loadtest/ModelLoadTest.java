@@ -0,0 +1,281 @@
+package ds.gae.loadtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.taskqueue.DeferredTask;
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Query;
+import com.google.cloud.datastore.QueryResults;
+import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
+
+import ds.gae.CarRentalModel;
+import ds.gae.ReservationException;
+import ds.gae.cache.LocalCompanyCache;
+import ds.gae.datastore.Datastores;
+import ds.gae.helper.Quote;
+import ds.gae.helper.ReservationConstraints;
+import ds.gae.helper.ReservationOrder;
+import ds.gae.listener.CarRentalServletContextListener;
+import ds.gae.notification.LocalNotifier;
+import ds.gae.notification.Notifications;
+import ds.gae.tasks.LocalTaskDispatcher;
+import ds.gae.tasks.TaskDispatchers;
+
+/**
+ * Drives a mix of quoting, confirming and listing bookings from many simulated
+ * renters against the local datastore emulator, and reports throughput,
+ * latency percentiles and the confirmation failure rate.
+ * 
+ * Every operation makes the same CarRentalModel call as the page that serves
+ * it: CreateQuoteServlet, ConfirmQuotesServlet and bookings.jsp. The calls are
+ * made in process, not over HTTP, so servlet dispatch, sessions and page
+ * rendering are not part of the measurement. Tasks run on
+ * a LocalTaskDispatcher with as many workers as queue-quote allows, and mail
+ * goes to a LocalNotifier, so no App Engine services are needed.
+ * 
+ * confirmQuotes only queues the basket, so its latency is that of the enqueue.
+ * The confirmation row reports the time from that enqueue until the
+ * confirmation task finished, retries and waiting in the queue included.
+ * 
+ * The emulator is expected at DATASTORE_EMULATOR_HOST; if nothing listens
+ * there, it is started with {@code gcloud beta emulators datastore start}.
+ * Settings are read from system properties: loadtest.renters,
+ * loadtest.seconds, loadtest.quoteShare and loadtest.confirmShare (in percent,
+ * the rest lists bookings).
+ */
+public class ModelLoadTest {
+
+    private static final Logger logger = Logger.getLogger(ModelLoadTest.class.getName());
+
+    private static final long DAY = 1000 * 60 * 60 * 24L;
+
+    private final int renters = Integer.getInteger("loadtest.renters", 50);
+    private final int seconds = Integer.getInteger("loadtest.seconds", 60);
+    private final int quoteShare = Integer.getInteger("loadtest.quoteShare", 60);
+    private final int confirmShare = Integer.getInteger("loadtest.confirmShare", 20);
+
+    private final Stats quotes = new Stats("createQuote");
+    private final Stats confirms = new Stats("confirmQuotes");
+    private final Stats listings = new Stats("getReservations");
+    // filled by the tasks, which only know the class
+    private static final Stats confirmations = new Stats("confirmation");
+
+    private final AtomicLong rejectedQuotes = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        Process emulator = startEmulatorIfNeeded();
+        try {
+            new ModelLoadTest().run();
+        } finally {
+            if (emulator != null) {
+                emulator.destroy();
+            }
+        }
+        System.exit(0);
+    }
+
+    private void run() throws Exception {
+        LocalTaskDispatcher dispatcher = new LocalTaskDispatcher(10);
+        TaskDispatchers.set((queueName, task, delayMillis) -> dispatcher.dispatch(queueName,
+                "queue-quote".equals(queueName) ? new TimedTask(task) : task, delayMillis));
+        Notifications.setNotifier(new LocalNotifier());
+
+        CarRentalModel model = CarRentalModel.get();
+        model.setCompanyCache(new LocalCompanyCache(16, 60, TimeUnit.SECONDS));
+        CarRentalServletContextListener.loadData("Hertz", "hertz.csv");
+        CarRentalServletContextListener.loadData("Dockx", "dockx.csv");
+        List<String> companies = new ArrayList<>(model.getAllRentalCompanyNames());
+
+        System.out.printf("Running %d renters for %d s (%d%% quote, %d%% confirm, %d%% list)%n", renters, seconds,
+                quoteShare, confirmShare, 100 - quoteShare - confirmShare);
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        ExecutorService pool = Executors.newFixedThreadPool(renters);
+        long startNanos = System.nanoTime();
+        for (int r = 0; r < renters; r++) {
+            int renterId = r;
+            pool.execute(() -> simulateRenter(model, companies, "renter" + renterId + "@example.com", deadline));
+        }
+        pool.shutdown();
+        pool.awaitTermination(seconds + 60, TimeUnit.SECONDS);
+        double elapsed = (System.nanoTime() - startNanos) / 1e9;
+
+        System.out.println("Waiting for queued confirmations...");
+        long drainStart = System.nanoTime();
+        if (!dispatcher.awaitIdle(5, TimeUnit.MINUTES)) {
+            System.out.println("Queue did not drain within 5 minutes");
+        }
+        double drain = (System.nanoTime() - drainStart) / 1e9;
+        dispatcher.shutdown();
+
+        System.out.printf("%n%-16s %10s %10s %10s %10s%n", "operation", "count", "ops/s", "p50 ms", "p99 ms");
+        for (Stats stats : new Stats[] { quotes, confirms, listings, confirmations }) {
+            stats.print(elapsed);
+        }
+        System.out.printf("%nQuotes rejected (no car available): %d%n", rejectedQuotes.get());
+        System.out.printf("Queue drained %.1f s after the load stopped%n", drain);
+        reportConfirmations(model);
+    }
+
+    private void simulateRenter(CarRentalModel model, List<String> companies, String renter, long deadline) {
+        Random random = new Random(renter.hashCode());
+        List<Quote> basket = new ArrayList<>();
+        while (System.nanoTime() < deadline) {
+            int dice = random.nextInt(100);
+            try {
+                if (dice < quoteShare) {
+                    String company = companies.get(random.nextInt(companies.size()));
+                    List<String> types = new ArrayList<>(model.getCarTypesNames(company));
+                    long start = System.currentTimeMillis() + (1 + random.nextInt(365)) * DAY;
+                    ReservationConstraints constraints = new ReservationConstraints(new Date(start),
+                            new Date(start + (1 + random.nextInt(14)) * DAY),
+                            types.get(random.nextInt(types.size())));
+                    long t0 = System.nanoTime();
+                    try {
+                        basket.add(model.createQuote(company, renter, constraints));
+                    } catch (ReservationException e) {
+                        rejectedQuotes.incrementAndGet();
+                    }
+                    quotes.record(System.nanoTime() - t0);
+                } else if (dice < quoteShare + confirmShare) {
+                    if (basket.isEmpty()) {
+                        continue;
+                    }
+                    long t0 = System.nanoTime();
+                    model.confirmQuotes(basket, renter);
+                    confirms.record(System.nanoTime() - t0);
+                    basket = new ArrayList<>();
+                } else {
+                    long t0 = System.nanoTime();
+                    model.getReservations(renter, ReservationOrder.UPCOMING_FIRST, 25, null);
+                    listings.record(System.nanoTime() - t0);
+                }
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, renter + " failed", e);
+            }
+        }
+    }
+
+    private void reportConfirmations(CarRentalModel model) {
+        Datastore datastore = Datastores.get();
+        Query<Entity> query = Query.newEntityQueryBuilder()
+                .setKind("ConfirmationOutcome")
+                .setFilter(PropertyFilter.hasAncestor(model.modelKey))
+                .build();
+        QueryResults<Entity> outcomes = datastore.run(query);
+        int confirmed = 0;
+        int failed = 0;
+        while (outcomes.hasNext()) {
+            if (outcomes.next().getBoolean("confirmed")) {
+                confirmed++;
+            } else {
+                failed++;
+            }
+        }
+        int total = confirmed + failed;
+        System.out.printf("Baskets confirmed: %d, failed: %d, failure rate: %.2f%%%n", confirmed, failed,
+                total == 0 ? 0 : 100.0 * failed / total);
+    }
+
+    private static Process startEmulatorIfNeeded() throws IOException, InterruptedException {
+        String host = System.getenv("DATASTORE_EMULATOR_HOST");
+        if (host == null) {
+            throw new IllegalStateException("Set DATASTORE_EMULATOR_HOST, e.g. localhost:8081");
+        }
+        if (isListening(host)) {
+            return null;
+        }
+
+        System.out.println("Starting the datastore emulator on " + host);
+        Process emulator = new ProcessBuilder("gcloud", "beta", "emulators", "datastore", "start",
+                "--no-store-on-disk", "--consistency=1.0", "--host-port=" + host,
+                "--project=" + System.getenv("DATASTORE_PROJECT_ID"))
+                .redirectErrorStream(true)
+                .redirectOutput(new File("target/datastore-emulator.log"))
+                .start();
+        for (int i = 0; i < 120 && !isListening(host); i++) {
+            Thread.sleep(500);
+        }
+        if (!isListening(host)) {
+            emulator.destroy();
+            throw new IllegalStateException("Datastore emulator did not start, see target/datastore-emulator.log");
+        }
+        return emulator;
+    }
+
+    private static boolean isListening(String hostPort) {
+        String[] parts = hostPort.split(":");
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(parts[0], Integer.parseInt(parts[1])), 200);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Records the time from the dispatch of a confirmation task until one of
+     * its attempts finished without throwing.
+     */
+    private static class TimedTask implements DeferredTask {
+
+        private static final long serialVersionUID = 1L;
+
+        private final DeferredTask task;
+        private final long enqueuedAt = System.nanoTime();
+
+        private TimedTask(DeferredTask task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+            confirmations.record(System.nanoTime() - enqueuedAt);
+        }
+    }
+
+    private static class Stats {
+
+        private final String name;
+        private final List<Long> latencies = new ArrayList<>();
+
+        private Stats(String name) {
+            this.name = name;
+        }
+
+        private synchronized void record(long nanos) {
+            latencies.add(nanos);
+        }
+
+        private synchronized void print(double elapsedSeconds) {
+            List<Long> sorted = new ArrayList<>(latencies);
+            Collections.sort(sorted);
+            System.out.printf("%-16s %10d %10.1f %10.2f %10.2f%n", name, sorted.size(),
+                    sorted.size() / elapsedSeconds, percentile(sorted, 0.50), percentile(sorted, 0.99));
+        }
+
+        private static double percentile(List<Long> sorted, double p) {
+            if (sorted.isEmpty()) {
+                return 0;
+            }
+            int index = (int) Math.ceil(p * sorted.size()) - 1;
+            return sorted.get(Math.max(0, index)) / 1e6;
+        }
+    }
+}
@@ -2,28 +2,64 @@ package ds.gae;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
-import com.google.appengine.api.taskqueue.Queue;
-import com.google.appengine.api.taskqueue.QueueFactory;
-import com.google.appengine.api.taskqueue.TaskOptions;
 import com.google.cloud.datastore.*;
+import com.google.cloud.datastore.StructuredQuery.CompositeFilter;
+import com.google.cloud.datastore.StructuredQuery.OrderBy;
 import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
 
+import ds.gae.allocation.*;
+import ds.gae.cache.*;
+import ds.gae.datastore.Datastores;
+import ds.gae.datastore.RpcStats;
 import ds.gae.entities.*;
 import ds.gae.helper.*;
 import ds.gae.tasks.*;
 
 public class CarRentalModel {
     
-	private Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+    private static final Logger logger = Logger.getLogger(CarRentalModel.class.getName());
     
-    public Key modelKey = datastore.allocateId(datastore.newKeyFactory().setKind("CarRentalModel").newKey());
+	private Datastore datastore = Datastores.get();
+    
+    // a fixed name, so every instance and every restart sees the same companies
+    public Key modelKey = datastore.newKeyFactory().setKind("CarRentalModel").newKey("default");
+    
+    private Key catalogVersionKey = Key.newBuilder(modelKey, "CatalogVersion", "catalog").build();
+    
+    // how long a read catalog version is used, so a page listing every company reads it once
+    private static final long CATALOG_VERSION_TTL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    
+    private volatile CatalogVersion catalogVersion;
     
     private static CarRentalModel instance;
     
+    // maximum number of companies searched at the same time, over all requests
+    private static final int MAX_SEARCH_THREADS = 8;
+    
+    private final ExecutorService searchExecutor = Executors.newFixedThreadPool(MAX_SEARCH_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "company-search");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    // largest page of reservations read in one request
+    private static final int MAX_PAGE_SIZE = 100;
+    
     public static CarRentalModel get() {
         if (instance == null) {
             instance = new CarRentalModel();
@@ -31,6 +67,94 @@ public class CarRentalModel {
         return instance;
     }
     
+    private CatalogCache catalogCache = new CatalogCache();
+    
+    private CompanyCache companyCache = new MemcacheCompanyCache(60, TimeUnit.SECONDS);
+    
+    private ConfirmationMode confirmationMode = ConfirmationMode.SINGLE_TRANSACTION;
+    
+    /**
+     * Choose how baskets of quotes spanning several companies are committed.
+     *
+     * @param confirmationMode the mode used for confirmations from now on
+     */
+    public void setConfirmationMode(ConfirmationMode confirmationMode) {
+        this.confirmationMode = confirmationMode;
+    }
+    
+    private boolean confirmationBatching = false;
+    
+    /**
+     * Enable or disable group commit of confirmations: baskets of a single
+     * company are then queued and confirmed together with the other baskets
+     * pending for that company.
+     *
+     * @param confirmationBatching whether to batch confirmations from now on
+     */
+    public void setConfirmationBatching(boolean confirmationBatching) {
+        this.confirmationBatching = confirmationBatching;
+    }
+    
+    private CarAllocationStrategy allocationStrategy = new RandomAllocation();
+    
+    /**
+     * Choose how confirmed quotes are assigned to the available cars.
+     *
+     * @param allocationStrategy the strategy used for confirmations from now on
+     */
+    public void setAllocationStrategy(CarAllocationStrategy allocationStrategy) {
+        this.allocationStrategy = allocationStrategy;
+    }
+    
+    /**
+     * Replace the cache of car rental companies, e.g. by a LocalCompanyCache
+     * outside App Engine.
+     *
+     * @param companyCache the cache to use from now on
+     */
+    public void setCompanyCache(CompanyCache companyCache) {
+        this.companyCache = companyCache;
+    }
+    
+    /**
+     * Get a snapshot of the given car rental company, built from its cached
+     * entities or from entities loaded from the datastore if none are cached.
+     *
+     * @param companyName name of the car rental company
+     * @return a car rental company of the caller's own
+     */
+    private CarRentalCompany getCompany(String companyName) {
+        return getCompany(companyName, companyCache.get(companyName));
+    }
+    
+    private CarRentalCompany getCompany(String companyName, List<Entity> cached) {
+        Key crcKey = Key.newBuilder(modelKey, "CarRentalCompany", companyName).build();
+        List<Entity> entities = cached;
+        if (entities == null) {
+            // taken before loading, so a commit invalidating the company meanwhile keeps these out of the cache
+            long generation = companyCache.getGeneration(companyName);
+            entities = new ArrayList<>();
+            QueryResults<Entity> results = datastore.run(Query.newEntityQueryBuilder()
+                    .setFilter(PropertyFilter.hasAncestor(crcKey))
+                    .build());
+            while (results.hasNext()) {
+                entities.add(results.next());
+            }
+            companyCache.put(companyName, generation, entities);
+        }
+        return new CarRentalCompany(crcKey, entities.iterator());
+    }
+    
+    /**
+     * Drop the cached snapshot of the given car rental company, so the next
+     * read loads its committed state.
+     *
+     * @param companyName name of the car rental company
+     */
+    public void invalidateCompany(String companyName) {
+        companyCache.invalidate(companyName);
+    }
+    
     /**
      * Get the car types available in the given car rental company.
      *
@@ -39,6 +163,10 @@ public class CarRentalModel {
      * car rental company.
      */
     public Set<String> getCarTypesNames(String companyName) {
+    	return catalogCache.getCarTypeNames(getCatalogVersion(), companyName, this::loadCarTypesNames);
+    }
+    
+    private Set<String> loadCarTypesNames(String companyName) {
     	Query<Key> query = Query.newKeyQueryBuilder()
     			.setKind("CarType")
     			.setFilter(PropertyFilter.hasAncestor(Key.newBuilder(modelKey, "CarRentalCompany", companyName).build()))
@@ -60,6 +188,10 @@ public class CarRentalModel {
      * @return the list of car rental companies
      */
     public Collection<String> getAllRentalCompanyNames() {
+    	return catalogCache.getCompanyNames(getCatalogVersion(), this::loadAllRentalCompanyNames);
+    }
+    
+    private Collection<String> loadAllRentalCompanyNames() {
         
     	Query<Key> query = Query.newKeyQueryBuilder()
     			.setKind("CarRentalCompany")
@@ -74,6 +206,56 @@ public class CarRentalModel {
     	
         return crcNames;
     }
+    
+    /**
+     * Get the current version of the catalog of companies and car types. The
+     * version is read at most once per second, so a change made on another
+     * instance can take that long to show up.
+     *
+     * @return the catalog version, 0 if the catalog was never written
+     */
+    private long getCatalogVersion() {
+    	CatalogVersion cached = catalogVersion;
+    	long now = System.nanoTime();
+    	if (cached != null && now - cached.readAt < CATALOG_VERSION_TTL_NANOS) {
+    		return cached.version;
+    	}
+    	Entity stamp = datastore.get(catalogVersionKey);
+    	CatalogVersion read = new CatalogVersion(stamp == null ? 0 : stamp.getLong("version"), now);
+    	catalogVersion = read;
+    	return read.version;
+    }
+    
+    private static class CatalogVersion {
+    	
+    	private final long version;
+    	private final long readAt;
+    	
+    	private CatalogVersion(long version, long readAt) {
+    		this.version = version;
+    		this.readAt = readAt;
+    	}
+    }
+    
+    /**
+     * Signal that companies or car types were added or changed, so every
+     * cached copy of the catalog gets reloaded.
+     */
+    public void bumpCatalogVersion() {
+    	Transaction tx = datastore.newTransaction();
+    	try {
+    		Entity stamp = tx.get(catalogVersionKey);
+    		long version = stamp == null ? 0 : stamp.getLong("version");
+    		tx.put(Entity.newBuilder(catalogVersionKey).set("version", version + 1).build());
+    		tx.commit();
+    		// this instance sees the change right away, others within the TTL
+    		catalogVersion = null;
+    	} finally {
+    		if (tx.isActive()) {
+    			tx.rollback();
+    		}
+    	}
+    }
 
     /**
      * Create a quote according to the given reservation constraints (tentative
@@ -88,8 +270,135 @@ public class CarRentalModel {
      */
     public Quote createQuote(String companyName, String renterName, ReservationConstraints constraints)
             throws ReservationException {
-        CarRentalCompany crc = new CarRentalCompany(Key.newBuilder(modelKey, "CarRentalCompany", companyName).build());
-        return crc.createQuote(constraints, renterName);
+        List<Entity> cached = companyCache.get(companyName);
+        if (cached == null) {
+            // only read the cars and reservations of the requested type
+            Quote quote = new AvailabilityQuery(Key.newBuilder(modelKey, "CarRentalCompany", companyName).build())
+                    .createQuote(constraints, renterName);
+            if (quote != null) {
+                return quote;
+            }
+        }
+        return getCompany(companyName, cached).createQuote(constraints, renterName);
+    }
+
+    /**
+     * Create quotes for several sets of reservation constraints at once, e.g.
+     * for a search over flexible dates. The company is loaded only once.
+     *
+     * @param companyName name of the car renter company
+     * @param renterName  name of the car renter
+     * @param constraints the reservation constraints to quote
+     * @return for every given constraints, in the same order, either the quote
+     * or the reason why no car fits them
+     */
+    public List<QuoteResult> createQuotes(String companyName, String renterName,
+            Collection<ReservationConstraints> constraints) {
+        CarRentalCompany crc = getCompany(companyName);
+        List<QuoteResult> out = new ArrayList<>(constraints.size());
+        for (ReservationConstraints c : constraints) {
+            try {
+                out.add(QuoteResult.success(c, crc.createQuote(c, renterName)));
+            } catch (ReservationException | IllegalArgumentException e) {
+                out.add(QuoteResult.failure(c, e.getMessage()));
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Find the companies that can rent out a car fitting the given constraints,
+     * querying all companies in parallel.
+     *
+     * @param renterName  name of the car renter
+     * @param constraints reservation constraints for the quotes
+     * @param timeout     how long each company may take, from the start of its search
+     * @param unit        unit of the timeout
+     * @return the quotes of the companies that answered in time and have a car
+     * available, cheapest first
+     */
+    public List<Quote> searchQuotes(String renterName, ReservationConstraints constraints, long timeout, TimeUnit unit) {
+        Collection<String> companyNames = getAllRentalCompanyNames();
+        List<Quote> out = new ArrayList<>();
+        if (companyNames.isEmpty()) {
+            return out;
+        }
+        
+        List<CompanySearch> searches = new ArrayList<>();
+        for (String companyName : companyNames) {
+            CompanySearch search = new CompanySearch(companyName,
+                    RpcStats.propagate(() -> createQuote(companyName, renterName, constraints)));
+            search.future = searchExecutor.submit(search);
+            searches.add(search);
+        }
+        
+        long budget = unit.toNanos(timeout);
+        for (int i = 0; i < searches.size(); i++) {
+            CompanySearch search = searches.get(i);
+            try {
+                out.add(search.await(budget));
+            } catch (TimeoutException e) {
+                search.future.cancel(true);
+                logger.log(Level.WARNING, "<{0}> Search timed out", search.companyName);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof ReservationException) {
+                    logger.log(Level.FINE, "<{0}> No car available: {1}",
+                            new Object[] { search.companyName, e.getCause().getMessage() });
+                } else {
+                    logger.log(Level.WARNING, "<" + search.companyName + "> Search failed", e.getCause());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                for (CompanySearch remaining : searches.subList(i, searches.size()))
+                    remaining.future.cancel(true);
+                break;
+            }
+        }
+        
+        out.sort(Comparator.comparingDouble(Quote::getRentalPrice));
+        return out;
+    }
+    
+    /**
+     * The search of one company on the shared executor. Its time budget starts
+     * when it starts running, so waiting for a free thread does not use it up;
+     * a search still waiting for a thread after a whole budget is given up.
+     */
+    private static class CompanySearch implements Callable<Quote> {
+        
+        private final String companyName;
+        private final Callable<Quote> search;
+        private final long submitted = System.nanoTime();
+        private volatile long started;
+        private volatile boolean running;
+        private Future<Quote> future;
+        
+        private CompanySearch(String companyName, Callable<Quote> search) {
+            this.companyName = companyName;
+            this.search = search;
+        }
+        
+        @Override
+        public Quote call() throws Exception {
+            started = System.nanoTime();
+            running = true;
+            return search.call();
+        }
+        
+        private Quote await(long budget) throws InterruptedException, ExecutionException, TimeoutException {
+            while (true) {
+                boolean wasRunning = running;
+                long remaining = (wasRunning ? started : submitted) + budget - System.nanoTime();
+                try {
+                    return future.get(Math.max(remaining, 0), TimeUnit.NANOSECONDS);
+                } catch (TimeoutException e) {
+                    if (wasRunning || !running) {
+                        throw e;
+                    }
+                    // started in the meantime, it gets its own budget
+                }
+            }
+        }
     }
 
     /**
@@ -98,8 +407,7 @@ public class CarRentalModel {
      * @param quote Quote to confirm
      */
     public void confirmQuote(Quote quote, String mailAddress) {
-    	Queue queue = QueueFactory.getQueue("queue-quote");
-		queue.add(TaskOptions.Builder.withPayload(new QuoteTask(modelKey, mailAddress, quote)));
+    	confirmQuotes(Collections.singletonList(quote), mailAddress);
     }
 
     /**
@@ -108,12 +416,35 @@ public class CarRentalModel {
      * @param quotes the quotes to confirm
      */
     public void confirmQuotes(List<Quote> quotes, String mailAddress) {
-    	Queue queue = QueueFactory.getQueue("queue-quote");
-		queue.add(TaskOptions.Builder.withPayload(new QuoteTask(modelKey, mailAddress, quotes.toArray(new Quote[quotes.size()]))));
+    	Quote[] basket = quotes.toArray(new Quote[quotes.size()]);
+    	if (confirmationBatching && isSingleCompany(basket)) {
+    		BatchConfirmTask.enqueue(modelKey, allocationStrategy, new ConfirmationRequest(mailAddress, basket));
+    		return;
+    	}
+    	TaskDispatchers.dispatch("queue-quote", new QuoteTask(modelKey, mailAddress, confirmationMode, allocationStrategy, basket));
+    }
+    
+    private boolean isSingleCompany(Quote[] quotes) {
+    	for (Quote quote : quotes)
+    		if (!quote.getRentalCompany().equals(quotes[0].getRentalCompany()))
+    			return false;
+    	return quotes.length > 0;
     }
 
     /**
-     * Get all reservations made by the given car renter.
+     * Move the car types of every company to the shared per-company catalog,
+     * one task per company. Started by an administrator through
+     * /admin/migrateCarTypes.
+     */
+    public void migrateCarTypes() {
+    	for (String crcName : getAllRentalCompanyNames())
+    		TaskDispatchers.dispatch("queue-quote",
+    				new MigrateCarTypesTask(Key.newBuilder(modelKey, "CarRentalCompany", crcName).build()));
+    }
+
+    /**
+     * Get all reservations made by the given car renter. This reads the whole
+     * booking history, pages should use the paginated variant instead.
      *
      * @param renter name of the car renter
      * @return the list of reservations of the given car renter
@@ -121,25 +452,106 @@ public class CarRentalModel {
     public List<Reservation> getReservations(String renter) {
         List<Reservation> out = new ArrayList<>();
         
-        Query<Key> query = Query.newKeyQueryBuilder()
-        		.setKind("CarRentalCompany")
-        		.setFilter(PropertyFilter.hasAncestor(modelKey))
+        Query<Entity> query = Query.newEntityQueryBuilder()
+        		.setKind("Reservation")
+        		.setFilter(CompositeFilter.and(
+        				PropertyFilter.hasAncestor(modelKey),
+        				PropertyFilter.eq("renter", renter)))
         		.build();
         
-        QueryResults<Key> results = datastore.run(query);
+        QueryResults<Entity> results = datastore.run(query);
         
         while(results.hasNext())
-        {
-        	CarRentalCompany crc = new CarRentalCompany(results.next());
-        	for (Car c : crc.getCars()) 
-                for (Reservation r : c.getReservations()) 
-                    if (r.getRenter().equals(renter)) 
-                        out.add(r);
-        }
+        	out.add(new Reservation(results.next()));
         
         return out;
     }
 
+    /**
+     * Get one page of the reservations made by the given car renter. The
+     * listing continues where the previous page ended by passing that page's
+     * token, with the same order.
+     *
+     * @param renter    name of the car renter
+     * @param order     order in which the reservations are listed
+     * @param pageSize  maximum number of reservations on the page, at most 100
+     * @param pageToken token of the previous page, or null for the first page
+     * @return the page of reservations
+     * @throws IllegalArgumentException if the page token is not valid
+     */
+    public ReservationPage getReservations(String renter, ReservationOrder order, int pageSize, String pageToken) {
+        int limit = Math.max(1, Math.min(pageSize, MAX_PAGE_SIZE));
+        
+        // the token pins the current time, so both parts of an upcoming first
+        // listing split the reservations at the same moment on every page
+        int part = 0;
+        long asOf = System.currentTimeMillis();
+        Cursor cursor = null;
+        if (pageToken != null) {
+            String[] token = pageToken.split("\\.", 3);
+            try {
+                part = Integer.parseInt(token[0]);
+                asOf = Long.parseLong(token[1]);
+                cursor = Cursor.fromUrlSafe(token[2]);
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("Invalid page token: " + pageToken, e);
+            }
+        }
+        
+        List<Reservation> out = new ArrayList<>(limit);
+        String nextPageToken = null;
+        EntityQuery.Builder query;
+        while ((query = reservationQuery(renter, order, part, asOf)) != null) {
+            // one row more than the page holds tells whether there is a next page
+            query.setLimit(limit + 1 - out.size());
+            if (cursor != null) {
+                query.setStartCursor(cursor);
+            }
+            QueryResults<Entity> results = datastore.run(query.build());
+            while (results.hasNext()) {
+                Entity entity = results.next();
+                if (out.size() == limit) {
+                    return new ReservationPage(out, nextPageToken);
+                }
+                out.add(new Reservation(entity));
+                if (out.size() == limit) {
+                    nextPageToken = part + "." + asOf + "." + results.getCursorAfter().toUrlSafe();
+                }
+            }
+            part++;
+            cursor = null;
+        }
+        return new ReservationPage(out, null);
+    }
+
+    // the query for one part of a listing, or null after the last part
+    private EntityQuery.Builder reservationQuery(String renter, ReservationOrder order, int part, long asOf) {
+        EntityQuery.Builder query = Query.newEntityQueryBuilder().setKind("Reservation");
+        PropertyFilter ofRenter = PropertyFilter.eq("renter", renter);
+        switch (order) {
+        case UPCOMING_FIRST:
+            if (part == 0) {
+                return query.setFilter(CompositeFilter.and(PropertyFilter.hasAncestor(modelKey), ofRenter,
+                        PropertyFilter.ge("endDate", asOf)))
+                        .setOrderBy(OrderBy.asc("endDate"));
+            }
+            if (part == 1) {
+                return query.setFilter(CompositeFilter.and(PropertyFilter.hasAncestor(modelKey), ofRenter,
+                        PropertyFilter.lt("endDate", asOf)))
+                        .setOrderBy(OrderBy.desc("endDate"));
+            }
+            return null;
+        case CHRONOLOGICAL:
+            if (part == 0) {
+                return query.setFilter(CompositeFilter.and(PropertyFilter.hasAncestor(modelKey), ofRenter))
+                        .setOrderBy(OrderBy.asc("startDate"));
+            }
+            return null;
+        default:
+            throw new IllegalArgumentException("Unknown order " + order);
+        }
+    }
+
     /**
      * Get the car types available in the given car rental company.
      *
@@ -147,7 +559,7 @@ public class CarRentalModel {
      * @return The list of car types in the given car rental company.
      */
     public Collection<CarType> getCarTypesOfCarRentalCompany(String companyName) {
-    	CarRentalCompany crc = new CarRentalCompany(Key.newBuilder(modelKey, "CarRentalCompany", companyName).build());
+    	CarRentalCompany crc = getCompany(companyName);
         Collection<CarType> out = new ArrayList<>(crc.getAllCarTypes());
         return out;
     }
@@ -188,7 +600,7 @@ public class CarRentalModel {
     private List<Car> getCarsByCarType(String companyName, CarType carType) {
         List<Car> out = new ArrayList<>();
         
-        CarRentalCompany crc = new CarRentalCompany(Key.newBuilder(modelKey, "CarRentalCompany", companyName).build());
+        CarRentalCompany crc = getCompany(companyName);
        
         for (Car c : crc.getCars()) {
             if (c.getType().equals(carType)) {
@@ -208,6 +620,14 @@ public class CarRentalModel {
      * than 0. False otherwise.
      */
     public boolean hasReservations(String renter) {
-        return this.getReservations(renter).size() > 0;
+        Query<Key> query = Query.newKeyQueryBuilder()
+        		.setKind("Reservation")
+        		.setFilter(CompositeFilter.and(
+        				PropertyFilter.hasAncestor(modelKey),
+        				PropertyFilter.eq("renter", renter)))
+        		.setLimit(1)
+        		.build();
+        
+        return datastore.run(query).hasNext();
     }
 }
@@ -0,0 +1,15 @@
+package ds.gae;
+
+/**
+ * Thrown when the cars that were free when a company was loaded have all been
+ * booked since. Unlike a ReservationException this is temporary: confirming
+ * again against a fresh load of the company can succeed.
+ */
+public class ReservationConflictException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ReservationConflictException(String string) {
+        super(string);
+    }
+}
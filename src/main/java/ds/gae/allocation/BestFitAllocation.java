@@ -0,0 +1,25 @@
+package ds.gae.allocation;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import ds.gae.entities.Car;
+import ds.gae.helper.Quote;
+
+/**
+ * Prefers the car whose calendar leaves the least free time around the quoted
+ * period, so long free periods stay available for long reservations.
+ */
+public class BestFitAllocation implements CarAllocationStrategy {
+
+	private static final long serialVersionUID = 1L;
+
+	@Override
+	public List<Car> rank(List<Car> candidates, Quote quote) {
+		List<Car> ranked = new ArrayList<>(candidates);
+		ranked.sort(Comparator.comparingLong((Car car) -> car.getSlack(quote.getStartDate(), quote.getEndDate()))
+				.thenComparingInt(Car::getId));
+		return ranked;
+	}
+}
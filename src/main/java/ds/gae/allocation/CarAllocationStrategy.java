@@ -0,0 +1,25 @@
+package ds.gae.allocation;
+
+import java.io.Serializable;
+import java.util.List;
+
+import ds.gae.entities.Car;
+import ds.gae.helper.Quote;
+
+/**
+ * Decides which of the available cars a confirmed quote is assigned to.
+ * Strategies travel with queued confirmations and must be serializable.
+ */
+public interface CarAllocationStrategy extends Serializable {
+
+	/**
+	 * Order the candidate cars for the given quote, most preferred first. When
+	 * a car turns out to have been booked concurrently, the next one is tried.
+	 *
+	 * @param candidates cars of the quoted type that are available for the quoted
+	 *                   period, never empty
+	 * @param quote      the quote being confirmed
+	 * @return the candidates in order of preference
+	 */
+	List<Car> rank(List<Car> candidates, Quote quote);
+}
@@ -0,0 +1,33 @@
+package ds.gae.allocation;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+
+import ds.gae.entities.Car;
+import ds.gae.helper.Quote;
+
+/**
+ * Starts at a car chosen by hashing the quote and continues in car id order,
+ * so concurrent confirmations of different quotes for the same type tend to
+ * start at different cars.
+ */
+public class HashSpreadAllocation implements CarAllocationStrategy {
+
+	private static final long serialVersionUID = 1L;
+
+	@Override
+	public List<Car> rank(List<Car> candidates, Quote quote) {
+		List<Car> byId = new ArrayList<>(candidates);
+		byId.sort(Comparator.comparingInt(Car::getId));
+
+		int hash = Objects.hash(quote.getCarRenter(), quote.getStartDate(), quote.getEndDate(), quote.getCarType());
+		int first = Math.floorMod(hash, byId.size());
+
+		List<Car> ranked = new ArrayList<>(byId.size());
+		ranked.addAll(byId.subList(first, byId.size()));
+		ranked.addAll(byId.subList(0, first));
+		return ranked;
+	}
+}
@@ -0,0 +1,23 @@
+package ds.gae.allocation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import ds.gae.entities.Car;
+import ds.gae.helper.Quote;
+
+/**
+ * Picks the candidates in random order.
+ */
+public class RandomAllocation implements CarAllocationStrategy {
+
+	private static final long serialVersionUID = 1L;
+
+	@Override
+	public List<Car> rank(List<Car> candidates, Quote quote) {
+		List<Car> ranked = new ArrayList<>(candidates);
+		Collections.shuffle(ranked);
+		return ranked;
+	}
+}
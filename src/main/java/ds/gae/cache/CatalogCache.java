@@ -0,0 +1,67 @@
+package ds.gae.cache;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Cache of the car rental catalog: the company names and the car type names
+ * of each company. Everything cached is tied to the catalog version it was
+ * loaded under and is dropped as soon as a caller presents another version.
+ * Loaders run outside the lock; what they return is only kept if the version
+ * did not change meanwhile.
+ */
+public class CatalogCache {
+
+	private long version = -1;
+	private Collection<String> companyNames;
+	private final Map<String, Set<String>> carTypeNames = new HashMap<>();
+
+	public Collection<String> getCompanyNames(long currentVersion, Supplier<Collection<String>> loader) {
+		synchronized (this) {
+			validate(currentVersion);
+			if (companyNames != null) {
+				return companyNames;
+			}
+		}
+		// loaded without holding the lock, so other callers are not held up by the query
+		Collection<String> loaded = Collections.unmodifiableSet(new HashSet<>(loader.get()));
+		synchronized (this) {
+			if (version == currentVersion && companyNames == null) {
+				companyNames = loaded;
+			}
+		}
+		return loaded;
+	}
+
+	public Set<String> getCarTypeNames(long currentVersion, String companyName,
+			Function<String, Set<String>> loader) {
+		synchronized (this) {
+			validate(currentVersion);
+			Set<String> names = carTypeNames.get(companyName);
+			if (names != null) {
+				return names;
+			}
+		}
+		Set<String> loaded = Collections.unmodifiableSet(new HashSet<>(loader.apply(companyName)));
+		synchronized (this) {
+			if (version == currentVersion) {
+				carTypeNames.putIfAbsent(companyName, loaded);
+			}
+		}
+		return loaded;
+	}
+
+	private void validate(long currentVersion) {
+		if (currentVersion != version) {
+			version = currentVersion;
+			companyNames = null;
+			carTypeNames.clear();
+		}
+	}
+}
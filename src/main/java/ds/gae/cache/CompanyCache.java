@@ -0,0 +1,42 @@
+package ds.gae.cache;
+
+import java.util.List;
+
+import com.google.cloud.datastore.Entity;
+
+/**
+ * Cache of the entity groups of car rental companies, keyed by company name.
+ * 
+ * The cached values are the entities of a company, which are serializable, so
+ * the cache can live in process or in a shared service such as memcache.
+ * Readers build their own CarRentalCompany from them. Confirmations always
+ * load the company from the datastore and invalidate its entry once they have
+ * committed.
+ * 
+ * Every company has a generation that invalidate advances. A reader takes the
+ * generation before loading and passes it to put, so entities loaded before a
+ * commit are never served after that commit invalidated the company.
+ */
+public interface CompanyCache {
+
+	/**
+	 * @param companyName name of the car rental company
+	 * @return the cached entities, or null if there are none, they expired or
+	 * the company was invalidated after they were loaded
+	 */
+	List<Entity> get(String companyName);
+
+	/**
+	 * @param companyName name of the car rental company
+	 * @return the generation to pass to put for entities loaded from now on
+	 */
+	long getGeneration(String companyName);
+
+	/**
+	 * Cache the entities of a company, unless it was invalidated since the
+	 * given generation was taken.
+	 */
+	void put(String companyName, long generation, List<Entity> entities);
+
+	void invalidate(String companyName);
+}
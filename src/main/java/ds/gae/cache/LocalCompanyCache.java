@@ -0,0 +1,79 @@
+package ds.gae.cache;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.google.cloud.datastore.Entity;
+
+/**
+ * In-process, size-bounded LRU cache of company entities with a time to live.
+ * Entries are only visible to the instance that loaded them, so the time to
+ * live bounds how stale they can be after another instance commits. Meant for
+ * running outside App Engine and for a single instance.
+ */
+public class LocalCompanyCache implements CompanyCache {
+
+	private final int maxEntries;
+	private final long ttlNanos;
+	private final Map<String, Entry> entries;
+	private final Map<String, Long> generations = new HashMap<>();
+
+	public LocalCompanyCache(int maxEntries, long ttl, TimeUnit unit) {
+		this.maxEntries = maxEntries;
+		this.ttlNanos = unit.toNanos(ttl);
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > LocalCompanyCache.this.maxEntries;
+			}
+		};
+	}
+
+	@Override
+	public synchronized List<Entity> get(String companyName) {
+		Entry entry = entries.get(companyName);
+		if (entry == null) {
+			return null;
+		}
+		if (System.nanoTime() - entry.loadedAt > ttlNanos) {
+			entries.remove(companyName);
+			return null;
+		}
+		return entry.entities;
+	}
+
+	@Override
+	public synchronized long getGeneration(String companyName) {
+		return generations.getOrDefault(companyName, 0L);
+	}
+
+	@Override
+	public synchronized void put(String companyName, long generation, List<Entity> entities) {
+		if (generation == getGeneration(companyName)) {
+			entries.put(companyName, new Entry(entities, System.nanoTime()));
+		}
+	}
+
+	@Override
+	public synchronized void invalidate(String companyName) {
+		entries.remove(companyName);
+		generations.put(companyName, getGeneration(companyName) + 1);
+	}
+
+	private static class Entry {
+
+		private final List<Entity> entities;
+		private final long loadedAt;
+
+		private Entry(List<Entity> entities, long loadedAt) {
+			this.entities = entities;
+			this.loadedAt = loadedAt;
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package ds.gae.cache;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.cloud.datastore.Entity;
+
+/**
+ * Company cache in App Engine memcache, shared by all instances: an
+ * invalidation after a commit is seen by every instance at once.
+ * 
+ * The generation of a company is a memcache counter next to its entities, and
+ * both are read in one call. A counter that memcache evicted starts again at
+ * the current time, so it never comes back to a generation stored with older
+ * entities.
+ */
+public class MemcacheCompanyCache implements CompanyCache {
+
+	private static final Logger logger = Logger.getLogger(MemcacheCompanyCache.class.getName());
+
+	private final MemcacheService memcache;
+	private final int ttlSeconds;
+
+	public MemcacheCompanyCache(long ttl, TimeUnit unit) {
+		this(MemcacheServiceFactory.getMemcacheService("companies"), ttl, unit);
+	}
+
+	public MemcacheCompanyCache(MemcacheService memcache, long ttl, TimeUnit unit) {
+		this.memcache = memcache;
+		this.ttlSeconds = (int) Math.max(1, unit.toSeconds(ttl));
+	}
+
+	@Override
+	public List<Entity> get(String companyName) {
+		Map<String, Object> values = memcache.getAll(Arrays.asList(entitiesKey(companyName), generationKey(companyName)));
+		Snapshot snapshot = (Snapshot) values.get(entitiesKey(companyName));
+		Long generation = (Long) values.get(generationKey(companyName));
+		if (snapshot == null || generation == null || snapshot.generation != generation) {
+			return null;
+		}
+		return snapshot.entities;
+	}
+
+	@Override
+	public long getGeneration(String companyName) {
+		Long generation = memcache.increment(generationKey(companyName), 0L, System.currentTimeMillis());
+		// without a counter no generation matches, so nothing is cached
+		return generation != null ? generation : -1;
+	}
+
+	@Override
+	public void put(String companyName, long generation, List<Entity> entities) {
+		try {
+			memcache.put(entitiesKey(companyName), new Snapshot(generation, entities),
+					Expiration.byDeltaSeconds(ttlSeconds));
+		} catch (RuntimeException e) {
+			// e.g. a company too large for one memcache value, it is then loaded every time
+			logger.log(Level.WARNING, "<" + companyName + "> Could not cache the company", e);
+		}
+	}
+
+	@Override
+	public void invalidate(String companyName) {
+		memcache.increment(generationKey(companyName), 1L, System.currentTimeMillis());
+		memcache.delete(entitiesKey(companyName));
+	}
+
+	private static String entitiesKey(String companyName) {
+		return "entities:" + companyName;
+	}
+
+	private static String generationKey(String companyName) {
+		return "generation:" + companyName;
+	}
+
+	private static class Snapshot implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private final long generation;
+		private final ArrayList<Entity> entities;
+
+		private Snapshot(long generation, List<Entity> entities) {
+			this.generation = generation;
+			this.entities = new ArrayList<>(entities);
+		}
+	}
+}
@@ -0,0 +1,266 @@
+package ds.gae.datastore;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import com.google.cloud.datastore.Batch;
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreOptions;
+import com.google.cloud.datastore.DatastoreReaderWriter;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.FullEntity;
+import com.google.cloud.datastore.IncompleteKey;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.KeyFactory;
+import com.google.cloud.datastore.Query;
+import com.google.cloud.datastore.QueryResults;
+import com.google.cloud.datastore.ReadOption;
+import com.google.cloud.datastore.Transaction;
+import com.google.datastore.v1.TransactionOptions;
+
+/**
+ * Datastore that counts every call it passes on in the RpcStats scope of the
+ * calling thread. Without a scope the calls go straight to the delegate.
+ *
+ * Batches are passed on as they are and not counted.
+ */
+public class AccountingDatastore implements Datastore {
+
+	private final Datastore delegate;
+
+	public AccountingDatastore(Datastore delegate) {
+		this.delegate = delegate;
+	}
+
+	public Datastore getDelegate() {
+		return delegate;
+	}
+
+	@Override
+	public DatastoreOptions getOptions() {
+		return delegate.getOptions();
+	}
+
+	@Override
+	public KeyFactory newKeyFactory() {
+		return delegate.newKeyFactory();
+	}
+
+	@Override
+	public Transaction newTransaction() {
+		return newTransaction(null);
+	}
+
+	@Override
+	public Transaction newTransaction(TransactionOptions options) {
+		Transaction tx = options == null ? delegate.newTransaction() : delegate.newTransaction(options);
+		RpcStats stats = RpcStats.current();
+		if(stats == null)
+			return tx;
+		stats.recordTransaction();
+		return new AccountingTransaction(this, tx, stats);
+	}
+
+	@Override
+	public <T> T runInTransaction(TransactionCallable<T> callable) {
+		return runInTransaction(callable, null);
+	}
+
+	@Override
+	public <T> T runInTransaction(TransactionCallable<T> callable, TransactionOptions options) {
+		RpcStats stats = RpcStats.current();
+		if(stats == null)
+			return options == null ? delegate.runInTransaction(callable) : delegate.runInTransaction(callable, options);
+
+		// the delegate commits, so the commit is only counted as a transaction
+		stats.recordTransaction();
+		TransactionCallable<T> counted = rw -> callable.run(accounted(rw, stats));
+		return options == null ? delegate.runInTransaction(counted) : delegate.runInTransaction(counted, options);
+	}
+
+	private DatastoreReaderWriter accounted(DatastoreReaderWriter rw, RpcStats stats) {
+		if(rw instanceof Transaction)
+			return new AccountingTransaction(this, (Transaction) rw, stats);
+		return rw;
+	}
+
+	@Override
+	public Batch newBatch() {
+		return delegate.newBatch();
+	}
+
+	@Override
+	public Key allocateId(IncompleteKey key) {
+		RpcStats stats = RpcStats.current();
+		if(stats == null)
+			return delegate.allocateId(key);
+		long start = System.nanoTime();
+		Key result = delegate.allocateId(key);
+		stats.recordAllocation(System.nanoTime() - start);
+		return result;
+	}
+
+	@Override
+	public List<Key> allocateId(IncompleteKey... keys) {
+		RpcStats stats = RpcStats.current();
+		if(stats == null)
+			return delegate.allocateId(keys);
+		long start = System.nanoTime();
+		List<Key> result = delegate.allocateId(keys);
+		stats.recordAllocation(System.nanoTime() - start);
+		return result;
+	}
+
+	@Override
+	public List<Key> reserveIds(Key... keys) {
+		RpcStats stats = RpcStats.current();
+		if(stats == null)
+			return delegate.reserveIds(keys);
+		long start = System.nanoTime();
+		List<Key> result = delegate.reserveIds(keys);
+		stats.recordAllocation(System.nanoTime() - start);
+		return result;
+	}
+
+	@Override
+	public Entity get(Key key) {
+		return get(key, new ReadOption[0]);
+	}
+
+	@Override
+	public Entity get(Key key, ReadOption... options) {
+		RpcStats stats = RpcStats.current();
+		if(stats == null)
+			return delegate.get(key, options);
+		long start = System.nanoTime();
+		Entity result = delegate.get(key, options);
+		stats.recordGet(Arrays.asList(key), System.nanoTime() - start);
+		return result;
+	}
+
+	@Override
+	public Iterator<Entity> get(Key... keys) {
+		return get(Arrays.asList(keys));
+	}
+
+	@Override
+	public Iterator<Entity> get(Iterable<Key> keys, ReadOption... options) {
+		RpcStats stats = RpcStats.current();
+		if(stats == null)
+			return delegate.get(keys, options);
+		long start = System.nanoTime();
+		Iterator<Entity> result = delegate.get(keys, options);
+		stats.recordGet(keys, System.nanoTime() - start);
+		return result;
+	}
+
+	@Override
+	public List<Entity> fetch(Key... keys) {
+		return fetch(Arrays.asList(keys));
+	}
+
+	@Override
+	public List<Entity> fetch(Iterable<Key> keys, ReadOption... options) {
+		RpcStats stats = RpcStats.current();
+		if(stats == null)
+			return delegate.fetch(keys, options);
+		long start = System.nanoTime();
+		List<Entity> result = delegate.fetch(keys, options);
+		stats.recordGet(keys, System.nanoTime() - start);
+		return result;
+	}
+
+	@Override
+	public <T> QueryResults<T> run(Query<T> query) {
+		return run(query, new ReadOption[0]);
+	}
+
+	// only the first batch of results is fetched here, later batches are not counted
+	@Override
+	public <T> QueryResults<T> run(Query<T> query, ReadOption... options) {
+		RpcStats stats = RpcStats.current();
+		if(stats == null)
+			return delegate.run(query, options);
+		long start = System.nanoTime();
+		QueryResults<T> result = delegate.run(query, options);
+		stats.recordQuery(System.nanoTime() - start);
+		return result;
+	}
+
+	@Override
+	public Entity add(FullEntity<?> entity) {
+		RpcStats stats = RpcStats.current();
+		if(stats == null)
+			return delegate.add(entity);
+		long start = System.nanoTime();
+		Entity result = delegate.add(entity);
+		stats.recordPut(1, System.nanoTime() - start);
+		stats.recordWritten(result.getKey());
+		return result;
+	}
+
+	@Override
+	public List<Entity> add(FullEntity<?>... entities) {
+		RpcStats stats = RpcStats.current();
+		if(stats == null)
+			return delegate.add(entities);
+		long start = System.nanoTime();
+		List<Entity> result = delegate.add(entities);
+		recordWrites(stats, result, System.nanoTime() - start);
+		return result;
+	}
+
+	@Override
+	public void update(Entity... entities) {
+		RpcStats stats = RpcStats.current();
+		if(stats == null) {
+			delegate.update(entities);
+			return;
+		}
+		long start = System.nanoTime();
+		delegate.update(entities);
+		recordWrites(stats, Arrays.asList(entities), System.nanoTime() - start);
+	}
+
+	@Override
+	public Entity put(FullEntity<?> entity) {
+		RpcStats stats = RpcStats.current();
+		if(stats == null)
+			return delegate.put(entity);
+		long start = System.nanoTime();
+		Entity result = delegate.put(entity);
+		stats.recordPut(1, System.nanoTime() - start);
+		stats.recordWritten(result.getKey());
+		return result;
+	}
+
+	@Override
+	public List<Entity> put(FullEntity<?>... entities) {
+		RpcStats stats = RpcStats.current();
+		if(stats == null)
+			return delegate.put(entities);
+		long start = System.nanoTime();
+		List<Entity> result = delegate.put(entities);
+		recordWrites(stats, result, System.nanoTime() - start);
+		return result;
+	}
+
+	@Override
+	public void delete(Key... keys) {
+		RpcStats stats = RpcStats.current();
+		if(stats == null) {
+			delegate.delete(keys);
+			return;
+		}
+		long start = System.nanoTime();
+		delegate.delete(keys);
+		stats.recordDelete(keys, System.nanoTime() - start);
+	}
+
+	private static void recordWrites(RpcStats stats, List<Entity> entities, long nanos) {
+		stats.recordPut(entities.size(), nanos);
+		for(Entity entity : entities)
+			stats.recordWritten(entity.getKey());
+	}
+}
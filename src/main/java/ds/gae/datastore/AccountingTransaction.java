@@ -0,0 +1,158 @@
+package ds.gae.datastore;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.FullEntity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.Query;
+import com.google.cloud.datastore.QueryResults;
+import com.google.cloud.datastore.Transaction;
+import com.google.protobuf.ByteString;
+
+/**
+ * Transaction handed out by an AccountingDatastore. Reads inside the
+ * transaction are counted as they happen; writes are buffered until the
+ * commit, so they are counted as mutations of that commit.
+ */
+class AccountingTransaction implements Transaction {
+
+	private final AccountingDatastore datastore;
+	private final Transaction delegate;
+	private final RpcStats stats;
+
+	private int mutations;
+
+	AccountingTransaction(AccountingDatastore datastore, Transaction delegate, RpcStats stats) {
+		this.datastore = datastore;
+		this.delegate = delegate;
+		this.stats = stats;
+	}
+
+	@Override
+	public Entity get(Key key) {
+		long start = System.nanoTime();
+		Entity result = delegate.get(key);
+		stats.recordGet(Arrays.asList(key), System.nanoTime() - start);
+		return result;
+	}
+
+	@Override
+	public Iterator<Entity> get(Key... keys) {
+		long start = System.nanoTime();
+		Iterator<Entity> result = delegate.get(keys);
+		stats.recordGet(Arrays.asList(keys), System.nanoTime() - start);
+		return result;
+	}
+
+	@Override
+	public List<Entity> fetch(Key... keys) {
+		long start = System.nanoTime();
+		List<Entity> result = delegate.fetch(keys);
+		stats.recordGet(Arrays.asList(keys), System.nanoTime() - start);
+		return result;
+	}
+
+	@Override
+	public <T> QueryResults<T> run(Query<T> query) {
+		long start = System.nanoTime();
+		QueryResults<T> result = delegate.run(query);
+		stats.recordQuery(System.nanoTime() - start);
+		return result;
+	}
+
+	@Override
+	public void addWithDeferredIdAllocation(FullEntity<?>... entities) {
+		delegate.addWithDeferredIdAllocation(entities);
+		mutations += entities.length;
+	}
+
+	@Override
+	public Entity add(FullEntity<?> entity) {
+		Entity result = delegate.add(entity);
+		written(result);
+		return result;
+	}
+
+	@Override
+	public List<Entity> add(FullEntity<?>... entities) {
+		List<Entity> result = delegate.add(entities);
+		for(Entity entity : result)
+			written(entity);
+		return result;
+	}
+
+	@Override
+	public void update(Entity... entities) {
+		delegate.update(entities);
+		for(Entity entity : entities)
+			written(entity);
+	}
+
+	@Override
+	public void delete(Key... keys) {
+		delegate.delete(keys);
+		mutations += keys.length;
+		for(Key key : keys)
+			stats.recordWritten(key);
+	}
+
+	@Override
+	public void putWithDeferredIdAllocation(FullEntity<?>... entities) {
+		delegate.putWithDeferredIdAllocation(entities);
+		mutations += entities.length;
+	}
+
+	@Override
+	public Entity put(FullEntity<?> entity) {
+		Entity result = delegate.put(entity);
+		written(result);
+		return result;
+	}
+
+	@Override
+	public List<Entity> put(FullEntity<?>... entities) {
+		List<Entity> result = delegate.put(entities);
+		for(Entity entity : result)
+			written(entity);
+		return result;
+	}
+
+	private void written(Entity entity) {
+		mutations++;
+		stats.recordWritten(entity.getKey());
+	}
+
+	@Override
+	public Response commit() {
+		long start = System.nanoTime();
+		Response response = delegate.commit();
+		stats.recordCommit(mutations, System.nanoTime() - start);
+		return response;
+	}
+
+	@Override
+	public void rollback() {
+		long start = System.nanoTime();
+		delegate.rollback();
+		stats.recordRollback(System.nanoTime() - start);
+	}
+
+	@Override
+	public boolean isActive() {
+		return delegate.isActive();
+	}
+
+	@Override
+	public Datastore getDatastore() {
+		return datastore;
+	}
+
+	@Override
+	public ByteString getTransactionId() {
+		return delegate.getTransactionId();
+	}
+}
@@ -0,0 +1,21 @@
+package ds.gae.datastore;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreOptions;
+
+/**
+ * The datastore used by the whole application. Every call goes through an
+ * AccountingDatastore, so the calls of a request or task can be counted with
+ * RpcStats.
+ */
+public final class Datastores {
+
+	private static final Datastore datastore = new AccountingDatastore(DatastoreOptions.getDefaultInstance().getService());
+
+	private Datastores() {
+	}
+
+	public static Datastore get() {
+		return datastore;
+	}
+}
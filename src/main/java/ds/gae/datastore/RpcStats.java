@@ -0,0 +1,252 @@
+package ds.gae.datastore;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.cloud.datastore.IncompleteKey;
+import com.google.cloud.datastore.Key;
+
+/**
+ * Datastore calls made on behalf of one request or task. A scope is started
+ * with begin() on the thread handling the request; every call going through
+ * an AccountingDatastore on that thread is then counted here. Worker threads
+ * join the scope through propagate().
+ *
+ * When a request looks up more single keys of one kind than the threshold
+ * (system property ds.gae.rpc.getThreshold, 20 by default), a warning is
+ * logged: those lookups are usually a loop that should be one batched get or
+ * a query.
+ *
+ * The summary logged by end() is at FINE, or at INFO when the scope made more
+ * calls than the threshold (system property ds.gae.rpc.logThreshold, 10 by
+ * default), so expensive requests show up with the default logging settings.
+ */
+public class RpcStats {
+
+	private static final Logger logger = Logger.getLogger(RpcStats.class.getName());
+
+	private static final int GET_THRESHOLD = Integer.getInteger("ds.gae.rpc.getThreshold", 20);
+	private static final int LOG_THRESHOLD = Integer.getInteger("ds.gae.rpc.logThreshold", 10);
+
+	// keys remembered per scope, so a scope walking a whole kind stays bounded
+	private static final int MAX_KEYS = 1000;
+
+	private static final ThreadLocal<RpcStats> current = new ThreadLocal<>();
+
+	private final String name;
+	private final long startedAt = System.nanoTime();
+
+	private int gets;
+	private int keysRead;
+	private int queries;
+	private int puts;
+	private int entitiesWritten;
+	private int deletes;
+	private int allocations;
+	private int transactions;
+	private int commits;
+	private int rollbacks;
+	private long rpcNanos;
+	private final Map<String, Integer> singleGetsByKind = new HashMap<>();
+	private final Set<Key> keys = new LinkedHashSet<>();
+
+	public RpcStats(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Start counting the calls of the current thread in a new scope.
+	 */
+	public static RpcStats begin(String name) {
+		RpcStats stats = new RpcStats(name);
+		current.set(stats);
+		return stats;
+	}
+
+	/**
+	 * The scope of the current thread, or null when calls are not counted.
+	 */
+	public static RpcStats current() {
+		return current.get();
+	}
+
+	/**
+	 * Stop counting for the current thread and log a summary.
+	 */
+	public void end() {
+		if(current.get() == this)
+			current.remove();
+		Level level = getRpcs() > LOG_THRESHOLD ? Level.INFO : Level.FINE;
+		if(logger.isLoggable(level))
+			logger.log(level, toString());
+	}
+
+	/**
+	 * Let a task submitted to another thread count its calls in the scope of
+	 * the submitting thread.
+	 */
+	public static <T> Callable<T> propagate(Callable<T> task) {
+		RpcStats stats = current.get();
+		if(stats == null)
+			return task;
+		return () -> {
+			RpcStats previous = current.get();
+			current.set(stats);
+			try {
+				return task.call();
+			} finally {
+				current.set(previous);
+			}
+		};
+	}
+
+	synchronized void recordGet(Iterable<Key> keys, long nanos) {
+		gets++;
+		rpcNanos += nanos;
+		int count = 0;
+		Key last = null;
+		for(Key key : keys) {
+			count++;
+			last = key;
+			remember(key);
+		}
+		keysRead += count;
+		if(count == 1) {
+			int singleGets = singleGetsByKind.merge(last.getKind(), 1, Integer::sum);
+			if(singleGets == GET_THRESHOLD + 1)
+				logger.log(Level.WARNING, "<{0}> More than {1} single gets of kind {2}, consider one batched get",
+						new Object[] { name, GET_THRESHOLD, last.getKind() });
+		}
+	}
+
+	synchronized void recordQuery(long nanos) {
+		queries++;
+		rpcNanos += nanos;
+	}
+
+	synchronized void recordPut(int entities, long nanos) {
+		puts++;
+		entitiesWritten += entities;
+		rpcNanos += nanos;
+	}
+
+	synchronized void recordDelete(Key[] keys, long nanos) {
+		deletes++;
+		rpcNanos += nanos;
+		for(Key key : keys)
+			remember(key);
+	}
+
+	synchronized void recordAllocation(long nanos) {
+		allocations++;
+		rpcNanos += nanos;
+	}
+
+	synchronized void recordWritten(IncompleteKey key) {
+		if(key instanceof Key)
+			remember((Key) key);
+	}
+
+	synchronized void recordTransaction() {
+		transactions++;
+	}
+
+	synchronized void recordCommit(int mutations, long nanos) {
+		commits++;
+		entitiesWritten += mutations;
+		rpcNanos += nanos;
+	}
+
+	synchronized void recordRollback(long nanos) {
+		rollbacks++;
+		rpcNanos += nanos;
+	}
+
+	private void remember(Key key) {
+		if(keys.size() < MAX_KEYS)
+			keys.add(key);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public synchronized int getGets() {
+		return gets;
+	}
+
+	public synchronized int getKeysRead() {
+		return keysRead;
+	}
+
+	public synchronized int getQueries() {
+		return queries;
+	}
+
+	public synchronized int getPuts() {
+		return puts;
+	}
+
+	public synchronized int getEntitiesWritten() {
+		return entitiesWritten;
+	}
+
+	public synchronized int getDeletes() {
+		return deletes;
+	}
+
+	public synchronized int getAllocations() {
+		return allocations;
+	}
+
+	public synchronized int getTransactions() {
+		return transactions;
+	}
+
+	public synchronized int getCommits() {
+		return commits;
+	}
+
+	/**
+	 * All round trips to the datastore: lookups, queries, writes, id
+	 * allocations, commits and rollbacks.
+	 */
+	public synchronized int getRpcs() {
+		return gets + queries + puts + deletes + allocations + commits + rollbacks;
+	}
+
+	public synchronized int getSingleGets(String kind) {
+		return singleGetsByKind.getOrDefault(kind, 0);
+	}
+
+	public synchronized Set<Key> getKeys() {
+		return Collections.unmodifiableSet(new LinkedHashSet<>(keys));
+	}
+
+	public synchronized long getRpcNanos() {
+		return rpcNanos;
+	}
+
+	public long getElapsedNanos() {
+		return System.nanoTime() - startedAt;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "<" + name + "> " + getRpcs() + " datastore calls: "
+				+ gets + " gets (" + keysRead + " keys), "
+				+ queries + " queries, "
+				+ puts + " puts, "
+				+ deletes + " deletes, "
+				+ allocations + " id allocations, "
+				+ transactions + " transactions (" + commits + " committed), "
+				+ entitiesWritten + " entities written, "
+				+ rpcNanos / 1000000 + " of " + getElapsedNanos() / 1000000 + " ms in the datastore";
+	}
+}
@@ -0,0 +1,132 @@
+package ds.gae.entities;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.cloud.datastore.*;
+import com.google.cloud.datastore.StructuredQuery.CompositeFilter;
+import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
+
+import ds.gae.ReservationException;
+import ds.gae.datastore.Datastores;
+import ds.gae.helper.Quote;
+import ds.gae.helper.ReservationConstraints;
+
+/**
+ * Creates quotes for one car rental company without loading the company.
+ * 
+ * Only the cars of the requested type and the reservations of that type that
+ * can overlap the requested period are read, using the carType properties of
+ * cars and reservations and the index on the reservation end date. That only
+ * finds every car once the company is marked catalogComplete, which the import
+ * and the car type migration write after all of its cars.
+ */
+public class AvailabilityQuery {
+
+    private static final Logger logger = Logger.getLogger(AvailabilityQuery.class.getName());
+
+    private final Datastore datastore;
+    private final Key crcKey;
+
+    public AvailabilityQuery(Key crcKey) {
+        this(Datastores.get(), crcKey);
+    }
+
+    public AvailabilityQuery(Datastore datastore, Key crcKey) {
+        this.datastore = datastore;
+        this.crcKey = crcKey;
+    }
+
+    /**
+     * Create a quote according to the given reservation constraints.
+     *
+     * @return the quote, or null if not all cars of the company refer to the
+     * catalog yet and it has to be loaded as a whole instead
+     * @throws ReservationException No car available that fits the given
+     *                              constraints.
+     */
+    public Quote createQuote(ReservationConstraints constraints, String client) throws ReservationException {
+        if (!constraints.getStartDate().before(constraints.getEndDate())) {
+            throw new IllegalArgumentException("Illegal given period");
+        }
+
+        List<Entity> entities = datastore.fetch(crcKey, Key.newBuilder(crcKey, "CarType", constraints.getCarType()).build());
+        Entity crcEntity = entities.get(0);
+        Entity typeEntity = entities.get(1);
+        // during a migration cars without a carType property would be missed
+        if (crcEntity == null || !crcEntity.contains("catalogComplete") || !crcEntity.getBoolean("catalogComplete")) {
+            return null;
+        }
+        if (typeEntity == null) {
+            return null;
+        }
+        CarType type = new CarType(typeEntity);
+
+        if (logger.isLoggable(Level.FINE))
+            logger.log(Level.FINE, "<{0}> Creating tentative reservation for {1} with constraints {2}",
+                    new Object[] { crcKey.getName(), client, constraints });
+
+        if (findAvailableCar(type.getName(), constraints.getStartDate().getTime(),
+                constraints.getEndDate().getTime()) == null) {
+            throw new ReservationException("<" + crcKey.getName() + "> No cars available to satisfy the given constraints.");
+        }
+
+        double price = CarRentalCompany.calculateRentalPrice(
+                type.getRentalPricePerDay(),
+                constraints.getStartDate(),
+                constraints.getEndDate()
+        );
+
+        return new Quote(
+                client,
+                constraints.getStartDate(),
+                constraints.getEndDate(),
+                crcKey.getName(),
+                constraints.getCarType(),
+                price
+        );
+    }
+
+    /**
+     * @return the key of the first car of the given type that is free during
+     * [start, end], or null if there is none
+     */
+    public Key findAvailableCar(String carType, long start, long end) {
+        // reservations ending before the period cannot overlap it
+        Query<ProjectionEntity> reservationQuery = Query.newProjectionEntityQueryBuilder()
+                .setKind("Reservation")
+                .setProjection("startDate")
+                .setFilter(CompositeFilter.and(
+                        PropertyFilter.hasAncestor(crcKey),
+                        PropertyFilter.eq("carType", carType),
+                        PropertyFilter.ge("endDate", start)))
+                .build();
+        QueryResults<ProjectionEntity> reservations = datastore.run(reservationQuery);
+
+        Set<Key> busyCars = new HashSet<>();
+        while (reservations.hasNext()) {
+            ProjectionEntity reservation = reservations.next();
+            if (reservation.getLong("startDate") <= end) {
+                busyCars.add(reservation.getKey().getParent());
+            }
+        }
+
+        Query<Key> carQuery = Query.newKeyQueryBuilder()
+                .setKind("Car")
+                .setFilter(CompositeFilter.and(
+                        PropertyFilter.hasAncestor(crcKey),
+                        PropertyFilter.eq("carType", carType)))
+                .build();
+        QueryResults<Key> cars = datastore.run(carQuery);
+        while (cars.hasNext()) {
+            Key car = cars.next();
+            if (!busyCars.contains(car)) {
+                return car;
+            }
+        }
+        return null;
+    }
+}
@@ -1,6 +1,6 @@
 package ds.gae.entities;
 
-import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
@@ -8,12 +8,11 @@ import java.util.Objects;
 import java.util.Set;
 
 import com.google.cloud.datastore.*;
-import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
 
+import ds.gae.datastore.Datastores;
+import ds.gae.helper.IntervalIndex;
 import ds.gae.helper.Quote;
-import ds.gae.helper.TemporaryReservation;
 import ds.gae.entities.*;
-import java.io.IOException;
 
 public class Car {
 
@@ -21,33 +20,30 @@ public class Car {
 	private CarType type;
     
 	private Set<Reservation> reservations = new HashSet<>();
+	private IntervalIndex calendar;
 	
-    private static Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+	// reservations_made as loaded, and the reservations added since
+	private long reservationsMade;
+	private int reservationsAdded;
+	
+    private static Datastore datastore = Datastores.get();
 
-    public Car(Key key)
-    {
-    	this.key = key;
-    	Query<Key> query = Query.newKeyQueryBuilder()
-    			.setKind("CarType")
-    			.setFilter(PropertyFilter.hasAncestor(key))
-    			.build();
-    	this.type = new CarType(datastore.run(query).next());
-    	
-    	Query<Key> resQuery = Query.newKeyQueryBuilder()
-        		.setKind("Reservation")
-        		.setFilter(PropertyFilter.hasAncestor(key))
-        		.build();
-    	
-        QueryResults<Key> results = datastore.run(resQuery);
-        
-        
-        while(results.hasNext())
-        	reservations.add(new Reservation(results.next()));
-    }
-    
-    public Car(Key key, Key typeKey) {
+    Car(Key key, CarType type, long reservationsMade, Collection<Reservation> reservations) {
+    	//Assembling constructor, used by CarRentalCompany when loading its entity group
     	this.key = key;
-    	this.type = new CarType(typeKey);
+    	this.type = type;
+    	this.reservationsMade = reservationsMade;
+    	this.calendar = new IntervalIndex(reservations.size());
+    	long[] starts = new long[reservations.size()];
+    	long[] ends = new long[reservations.size()];
+    	int i = 0;
+    	for (Reservation reservation : reservations) {
+    		this.reservations.add(reservation);
+    		starts[i] = reservation.getStartTime();
+    		ends[i] = reservation.getEndTime();
+    		i++;
+    	}
+    	calendar.addAll(starts, ends);
     }
 
     /******
@@ -85,28 +81,40 @@ public class Car {
             throw new IllegalArgumentException("Illegal given period");
         }
 
-        for (Reservation reservation : getReservations()) {
-            try {
-				if (reservation.getEndDate().before(start) || reservation.getStartDate().after(end)) {
-				    continue;
-				}
-			} catch (ClassNotFoundException | IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-            return false;
-        }
-        return true;
+        return !calendar.overlaps(start.getTime(), end.getTime());
     }
     
+    /**
+     * Free time around the given period in this car's calendar; the smaller it
+     * is, the tighter a reservation for the period fits.
+     */
+    public long getSlack(Date start, Date end) {
+    	return calendar.slack(start.getTime(), end.getTime());
+    }
+    
+    /**
+     * Add a reservation for the given quote to this car within the given
+     * transaction.
+     *
+     * @return the new reservation, or null if a reservation made for this car
+     * since it was loaded overlaps the quote
+     */
     public Reservation addReservation(Transaction tx, Quote quote, int carId) {
     	
+    	Entity carEntity = tx.get(key);
+    	long stored = carEntity.getLong("reservations_made");
+    	if (stored != reservationsMade && !catchUp(tx, stored, quote)) {
+    		return null;
+    	}
+    	
     	Reservation res = new Reservation(tx, key, quote, carId);
-    	reservations.add(new TemporaryReservation(quote, carId));
+    	reservations.add(res);
+    	calendar.add(res.getStartTime(), res.getEndTime());
+    	reservationsAdded++;
     	
-    	Entity updatedEntity = Entity.newBuilder(key)
+    	Entity updatedEntity = Entity.newBuilder(carEntity)
     			//trigger concurrency for transaction
-    			.set("reservations_made", ((datastore.get(key).getLong("reservations_made") + 1)%Long.MAX_VALUE))
+    			.set("reservations_made", ((reservationsMade + reservationsAdded)%Long.MAX_VALUE))
     			.build();
     	
     	
@@ -115,9 +123,56 @@ public class Car {
     	return res;
     }
     
+    /**
+     * Another booking for this car committed since it was loaded. Read the
+     * car's reservations within the transaction, so a later commit still
+     * conflicts, and check whether the quote is free after all.
+     */
+    private boolean catchUp(Transaction tx, long stored, Quote quote) {
+    	QueryResults<Entity> results = tx.run(Query.newEntityQueryBuilder()
+    			.setKind("Reservation")
+    			.setFilter(StructuredQuery.PropertyFilter.hasAncestor(key))
+    			.build());
+    	while (results.hasNext()) {
+    		Reservation reservation = new Reservation(results.next());
+    		if (reservations.add(reservation)) {
+    			calendar.add(reservation.getStartTime(), reservation.getEndTime());
+    		}
+    	}
+    	reservationsMade = stored;
+    	return !calendar.overlaps(quote.getStartDate().getTime(), quote.getEndDate().getTime());
+    }
+    
+    /**
+     * Take back a reservation added within the given transaction that has not
+     * been committed yet: its write is replaced by a delete and the car's
+     * reservation count is written back.
+     */
+    void withdrawReservation(Transaction tx, Reservation res) {
+    	if (!reservations.remove(res)) {
+    		return;
+    	}
+    	calendar.remove(res.getStartTime(), res.getEndTime());
+    	reservationsAdded--;
+    	tx.delete(res.getKey());
+    	tx.put(Entity.newBuilder(tx.get(key))
+    			.set("reservations_made", ((reservationsMade + reservationsAdded)%Long.MAX_VALUE))
+    			.build());
+    }
+    
+    /**
+     * The reservations added so far were committed: later transactions compare
+     * against the count that now is stored.
+     */
+    void reservationsCommitted() {
+    	reservationsMade = (reservationsMade + reservationsAdded)%Long.MAX_VALUE;
+    	reservationsAdded = 0;
+    }
+    
     public boolean cancelReservation(Reservation res) {
-    	if(reservations.contains(res.key)) {
+    	if(reservations.remove(res)) {
     		datastore.delete(res.key);
+    		calendar.remove(res.getStartTime(), res.getEndTime());
     		return true;
     	}
     	return false;
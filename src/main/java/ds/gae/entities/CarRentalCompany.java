@@ -1,13 +1,15 @@
 package ds.gae.entities;
 
+import ds.gae.datastore.Datastores;
 import ds.gae.helper.*;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -18,19 +20,34 @@ import java.util.logging.Logger;
 import com.google.cloud.datastore.*;
 import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
 
+import ds.gae.ReservationConflictException;
 import ds.gae.ReservationException;
+import ds.gae.allocation.CarAllocationStrategy;
+import ds.gae.allocation.RandomAllocation;
 import ds.gae.helper.ReservationConstraints;
+import ds.gae.metrics.Counter;
+import ds.gae.metrics.Metrics;
 
 public class CarRentalCompany {
 
     private static final Logger logger = Logger.getLogger(CarRentalCompany.class.getName());
+    
+    private static final String FAILURE_METRIC = "ds_gae_reservation_failures_total";
+    private static final String FAILURE_HELP = "Reservations that could not be made, by reason";
+    private static final Counter unavailableFailures = Metrics.counter(FAILURE_METRIC, FAILURE_HELP, "reason", "unavailable");
+    private static final Counter conflictFailures = Metrics.counter(FAILURE_METRIC, FAILURE_HELP, "reason", "conflict");
+    private static final Counter allocationConflicts = Metrics.counter("ds_gae_allocation_conflicts_total",
+            "Cars found booked concurrently while confirming, each followed by a try on the next candidate");
 
     private Key key;
     
-    private Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+    private Datastore datastore = Datastores.get();
     
     private Set<Car> cars;
     private Map<String, CarType> carTypes = new HashMap<>();
+    private Map<String, List<Car>> carsByType = new HashMap<>();
+    private AvailabilityCalendar calendar = new AvailabilityCalendar();
+    private CarAllocationStrategy allocationStrategy = new RandomAllocation();
 
     /***************
      * CONSTRUCTOR *
@@ -38,25 +55,69 @@ public class CarRentalCompany {
 
     public CarRentalCompany(Key key)
     {
-    	//Query constructor
-    	this.key = key;
-    	
-    	Query<Key> query = Query.newKeyQueryBuilder()
-    			.setKind("Car")
+    	//Query constructor: loads the whole company entity group with one ancestor query
+    	this(key, Datastores.get().run(Query.newEntityQueryBuilder()
     			.setFilter(PropertyFilter.hasAncestor(key))
-    			.build();
+    			.build()));
+    }
+    
+    public CarRentalCompany(Key key, Iterator<Entity> results)
+    {
+    	//Assembling constructor: builds the company from the entities of its entity group
+    	this.key = key;
     	
-    	QueryResults<Key> results = datastore.run(query);
+    	List<Entity> carEntities = new ArrayList<>();
+    	Map<String, CarType> catalog = new HashMap<>();
+    	Map<Key, CarType> legacyTypeByCar = new HashMap<>();
+    	Map<Key, List<Reservation>> reservationsByCar = new HashMap<>();
+    	while(results.hasNext())
+    	{
+    		Entity entity = results.next();
+    		Key entityKey = entity.getKey();
+    		switch(entityKey.getKind())
+    		{
+    		case "Car":
+    			carEntities.add(entity);
+    			break;
+    		case "CarType":
+    			// company level types form the catalog, types under a car predate it
+    			if(entityKey.getParent().equals(key))
+    				catalog.put(entityKey.getName(), new CarType(entity));
+    			else
+    				legacyTypeByCar.put(entityKey.getParent(), new CarType(entity));
+    			break;
+    		case "Reservation":
+    			reservationsByCar.computeIfAbsent(entityKey.getParent(), k -> new ArrayList<>())
+    					.add(new Reservation(entity));
+    			break;
+    		default:
+    			break;
+    		}
+    	}
     	
     	cars = new HashSet<>();
-    	while(results.hasNext())
+    	for(Entity carEntity : carEntities)
     	{
-    		Car car = new Car(results.next());
+    		Key carKey = carEntity.getKey();
+    		CarType type = carEntity.contains("carType")
+    				? catalog.get(carEntity.getString("carType"))
+    				: legacyTypeByCar.get(carKey);
+    		long reservationsMade = carEntity.contains("reservations_made") ? carEntity.getLong("reservations_made") : 0;
+    		Car car = new Car(carKey, type, reservationsMade,
+    				reservationsByCar.getOrDefault(carKey, Collections.emptyList()));
     		cars.add(car);
-    		carTypes.put(car.getType().getName(), car.getType());
+    		carTypes.put(type.getName(), type);
+    		carsByType.computeIfAbsent(type.getName(), k -> new ArrayList<>()).add(car);
+    		calendar.addCar(type.getName());
+    		for(Reservation res : car.getReservations())
+    			calendar.book(type.getName(), res.getStartTime(), res.getEndTime());
     	}
     }
     
+    public void setAllocationStrategy(CarAllocationStrategy allocationStrategy) {
+    	this.allocationStrategy = allocationStrategy;
+    }
+    
     public String getName() {
     	return this.key.getName();
     }
@@ -74,20 +135,34 @@ public class CarRentalCompany {
     }
 
     public boolean isAvailable(String carTypeName, Date start, Date end) {
-        logger.log(Level.INFO, "<{0}> Checking availability for car type {1}", new Object[] { getName(), carTypeName });
-        return getAvailableCarTypes(start, end).contains(getCarType(carTypeName));
+        if (logger.isLoggable(Level.FINE))
+            logger.log(Level.FINE, "<{0}> Checking availability for car type {1}", new Object[] { getName(), carTypeName });
+        return isCarTypeAvailable(carTypeName, start, end);
     }
 
     public Set<CarType> getAvailableCarTypes(Date start, Date end) {
         Set<CarType> availableCarTypes = new HashSet<>();
-        for (Car car : getCars()) {
-            if (car.isAvailable(start, end)) {
-                availableCarTypes.add(car.getType());
+        for (CarType type : getAllCarTypes()) {
+            if (isCarTypeAvailable(type.getName(), start, end)) {
+                availableCarTypes.add(type);
             }
         }
         return availableCarTypes;
     }
 
+    // the calendar rejects fully booked periods, otherwise stop at the first free car
+    private boolean isCarTypeAvailable(String carTypeName, Date start, Date end) {
+        if (calendar.isFullyBooked(carTypeName, start.getTime(), end.getTime())) {
+            return false;
+        }
+        for (Car car : carsByType.getOrDefault(carTypeName, Collections.emptyList())) {
+            if (car.isAvailable(start, end)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /*********
      * CARS *
      *********/
@@ -96,9 +171,12 @@ public class CarRentalCompany {
     }
 
     private List<Car> getAvailableCars(String carType, Date start, Date end) {
-        List<Car> availableCars = new LinkedList<>();
-        for (Car car : cars) {
-            if (car.getType().getName().equals(carType) && car.isAvailable(start, end)) {
+        List<Car> availableCars = new ArrayList<>();
+        if (calendar.isFullyBooked(carType, start.getTime(), end.getTime())) {
+            return availableCars;
+        }
+        for (Car car : carsByType.getOrDefault(carType, Collections.emptyList())) {
+            if (car.isAvailable(start, end)) {
                 availableCars.add(car);
             }
         }
@@ -110,8 +188,10 @@ public class CarRentalCompany {
      ****************/
 
     public Quote createQuote(ReservationConstraints constraints, String client) throws ReservationException {
-        logger.log(Level.INFO, "<{0}> Creating tentative reservation for {1} with constraints {2}",
-                new Object[] { getName(), client, constraints.toString() });
+        // called for every company on every search, so only logged when asked for
+        if (logger.isLoggable(Level.FINE))
+            logger.log(Level.FINE, "<{0}> Creating tentative reservation for {1} with constraints {2}",
+                    new Object[] { getName(), client, constraints });
 
         CarType type = getCarType(constraints.getCarType());
 
@@ -136,7 +216,7 @@ public class CarRentalCompany {
     }
 
     // Implementation can be subject to different pricing strategies
-    private double calculateRentalPrice(double rentalPricePerDay, Date start, Date end) {
+    static double calculateRentalPrice(double rentalPricePerDay, Date start, Date end) {
         return rentalPricePerDay * Math.ceil((end.getTime() - start.getTime()) / (1000 * 60 * 60 * 24D));
     }
 
@@ -144,13 +224,48 @@ public class CarRentalCompany {
         logger.log(Level.INFO, "<{0}> Reservation of {1}", new Object[] { getName(), quote.toString() });
         List<Car> availableCars = getAvailableCars(quote.getCarType(), quote.getStartDate(), quote.getEndDate());
         if (availableCars.isEmpty()) {
+            unavailableFailures.increment();
             throw new ReservationException("Reservation failed, all cars of type " + quote.getCarType()
                     + " are unavailable from " + quote.getStartDate() + " to " + quote.getEndDate());
         }
-        Car car = availableCars.get((int) (Math.random() * availableCars.size()));
-        
-        Reservation res = car.addReservation(tx, quote, car.getId());
-        return res;
+        for (Car car : allocationStrategy.rank(availableCars, quote)) {
+            Reservation res = car.addReservation(tx, quote, car.getId());
+            if (res != null) {
+                calendar.book(quote.getCarType(), res.getStartTime(), res.getEndTime());
+                return res;
+            }
+            logger.log(Level.FINE, "<{0}> Car {1} was booked concurrently, trying the next candidate",
+                    new Object[] { getName(), car.getId() });
+            allocationConflicts.increment();
+        }
+        conflictFailures.increment();
+        // the cars may be free again after loading the company anew, so the caller retries
+        throw new ReservationConflictException("Reservation failed, all available cars of type " + quote.getCarType()
+                + " were booked concurrently");
+    }
+
+    /**
+     * Take back a reservation made with confirmQuote in the given transaction
+     * before it is committed, so the transaction can go on with other quotes.
+     */
+    public void withdrawReservation(Transaction tx, Reservation res) {
+        for (Car car : getCars()) {
+            if (car.getKey().equals(res.getKey().getParent())) {
+                car.withdrawReservation(tx, res);
+                calendar.release(res.getCarType(), res.getStartTime(), res.getEndTime());
+                return;
+            }
+        }
+    }
+
+    /**
+     * The transaction holding the reservations made since loading was
+     * committed, so this company can be used for the next transaction.
+     */
+    public void reservationsCommitted() {
+        for (Car car : getCars()) {
+            car.reservationsCommitted();
+        }
     }
 
     public void cancelReservation(Reservation res) {
@@ -160,7 +275,10 @@ public class CarRentalCompany {
     	while(!found && it.hasNext())
     	{
     		Car car = it.next();
-    		if(car.cancelReservation(res)) found = true;
+    		if(car.cancelReservation(res)) {
+    			found = true;
+    			calendar.release(car.getType().getName(), res.getStartTime(), res.getEndTime());
+    		}
     	}
     }
     
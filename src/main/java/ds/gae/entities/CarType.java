@@ -6,16 +6,24 @@ import com.google.cloud.datastore.*;
 
 public class CarType {
     
-    private Key key;
+    private final Key key;
     
-    private Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+    private final int nbOfSeats;
+    private final boolean smokingAllowed;
+    private final double rentalPricePerDay;
+    private final float trunkSpace;
     
     /***************
      * CONSTRUCTOR *
      ***************/
 
-    public CarType(Key key) {
-    	this.key = key;
+    public CarType(Entity entity) {
+    	//Hydrating constructor: all properties are read once from the fetched entity
+    	this.key = entity.getKey();
+    	this.nbOfSeats = (int) entity.getLong("nbOfSeats");
+    	this.smokingAllowed = entity.getBoolean("smokingAllowed");
+    	this.rentalPricePerDay = entity.getDouble("rentalPricePerDay");
+    	this.trunkSpace = (float) entity.getDouble("trunkSpace");
     }
 
     public String getName() {
@@ -23,19 +31,19 @@ public class CarType {
     }
     
     public int getNbOfSeats() {
-    	return new Long(datastore.get(key).getLong("nbOfSeats")).intValue();
+    	return nbOfSeats;
     }
 
     public boolean isSmokingAllowed() {
-        return datastore.get(key).getBoolean("smokingAllowed");
+        return smokingAllowed;
     }
 
     public double getRentalPricePerDay() {
-        return datastore.get(key).getDouble("rentalPricePerDay");
+        return rentalPricePerDay;
     }
 
     public float getTrunkSpace() {
-        return new Double(datastore.get(key).getDouble("trunkSpace")).floatValue();
+        return trunkSpace;
     }
     
     public Key getKey() {
@@ -1,7 +1,7 @@
 package ds.gae.entities;
+import ds.gae.datastore.Datastores;
 import ds.gae.helper.*;
 
-import java.io.IOException;
 import java.util.Date;
 import java.util.Objects;
 
@@ -9,9 +9,17 @@ import com.google.cloud.datastore.*;
 
 public class Reservation {
 
-	protected Key key;
+	private static Datastore datastore = Datastores.get();
+
+	protected final Key key;
 	
-	protected Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+	private final String renter;
+	private final long startDate;
+	private final long endDate;
+	private final String rentalCompany;
+	private final String carType;
+	private final double rentalPrice;
+	private final int carId;
     
     /***************
      * CONSTRUCTOR *
@@ -19,25 +27,40 @@ public class Reservation {
 
     public Reservation(Transaction tx, Key carKey, Quote quote, int carId) {
     	//Persisting constructor
-    	Key newKey = datastore.allocateId(Key.newBuilder(carKey, "Reservation").build());
-    	Entity entityTask = Entity.newBuilder(newKey)
-    			.set("renter", quote.getCarRenter())
-    			.set("startDate", quote.getStartDate().getTime())
-    			.set("endDate", quote.getEndDate().getTime())
-    			.set("crc", quote.getRentalCompany())
-    			.set("carType", quote.getCarType())
-    			.set("rentalPrice", quote.getRentalPrice())
+    	this.key = datastore.allocateId(Key.newBuilder(carKey, "Reservation").build());
+    	this.renter = quote.getCarRenter();
+    	this.startDate = quote.getStartDate().getTime();
+    	this.endDate = quote.getEndDate().getTime();
+    	this.rentalCompany = quote.getRentalCompany();
+    	this.carType = quote.getCarType();
+    	this.rentalPrice = quote.getRentalPrice();
+    	this.carId = carId;
+    	
+    	Entity entityTask = Entity.newBuilder(key)
+    			.set("renter", renter)
+    			.set("startDate", startDate)
+    			.set("endDate", endDate)
+    			.set("crc", rentalCompany)
+    			.set("carType", carType)
+    			.set("rentalPrice", rentalPrice)
     			.set("carId", carId)
     			.build();
     	
     	tx.put(entityTask);
     }
     
-    public Reservation(Key key) {
-    	//Non-persisting constructor
-        this.key = key;
+    public Reservation(Entity entity) {
+    	//Non-persisting constructor: all properties are read once from the fetched entity
+        this.key = entity.getKey();
+        this.renter = entity.getString("renter");
+        this.startDate = entity.getLong("startDate");
+        this.endDate = entity.getLong("endDate");
+        this.rentalCompany = entity.getString("crc");
+        this.carType = entity.getString("carType");
+        this.rentalPrice = entity.getDouble("rentalPrice");
+        this.carId = (int) entity.getLong("carId");
     }
-
+    
     /******
      * Getters *
      ******/
@@ -47,31 +70,39 @@ public class Reservation {
     }
     
     public int getCarId() {
-        return new Long(datastore.get(key).getLong("carId")).intValue();
+        return carId;
     }
 
-    public Date getStartDate() throws ClassNotFoundException, IOException {
-    	return new Date(datastore.get(key).getLong("startDate"));
+    public Date getStartDate() {
+    	return new Date(startDate);
     }
 
-    public Date getEndDate() throws ClassNotFoundException, IOException {
-    	return new Date(datastore.get(key).getLong("endDate"));
+    public Date getEndDate() {
+    	return new Date(endDate);
+    }
+    
+    public long getStartTime() {
+    	return startDate;
+    }
+    
+    public long getEndTime() {
+    	return endDate;
     }
 
     public String getRenter() {
-        return datastore.get(key).getString("renter");
+        return renter;
     }
 
     public String getRentalCompany() {
-        return datastore.get(key).getString("crc");
+        return rentalCompany;
     }
 
     public double getRentalPrice() {
-        return datastore.get(key).getDouble("rentalPrice");
+        return rentalPrice;
     }
 
     public String getCarType() {
-        return datastore.get(key).getString("carType");
+        return carType;
     }
 
     /*************
@@ -80,21 +111,15 @@ public class Reservation {
 
     @Override
     public String toString() {
-        try {
-			return String.format(
-			        "Reservation for %s from %s to %s at %s\nCar type: %s\tTotal price: %.2f",
-			        getRenter(),
-			        getStartDate(),
-			        getEndDate(),
-			        getRentalCompany(),
-			        getCarType(),
-			        getRentalPrice()
-			);
-		} catch (ClassNotFoundException | IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-			return null; //wrong
-		}
+        return String.format(
+                "Reservation for %s from %s to %s at %s\nCar type: %s\tTotal price: %.2f",
+                getRenter(),
+                getStartDate(),
+                getEndDate(),
+                getRentalCompany(),
+                getCarType(),
+                getRentalPrice()
+        );
     }
 
     @Override
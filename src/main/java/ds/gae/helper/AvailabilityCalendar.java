@@ -0,0 +1,90 @@
+package ds.gae.helper;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Per car type, per day count of cars that are booked for the whole day.
+ * 
+ * Days are UTC epoch days. A reservation only counts towards the days it
+ * covers completely, so a day on which every car of a type is booked is a
+ * day on which no car of that type can take any part of a new reservation.
+ * The calendar therefore answers "certainly unavailable" in O(days); a period
+ * it does not reject still has to be confirmed against the individual cars.
+ */
+public class AvailabilityCalendar {
+
+	private static final long DAY = 1000 * 60 * 60 * 24L;
+
+	private final Map<String, TypeCalendar> calendars = new HashMap<>();
+
+	public void addCar(String carType) {
+		calendars.computeIfAbsent(carType, t -> new TypeCalendar()).fleetSize++;
+	}
+
+	public void book(String carType, long start, long end) {
+		update(carType, start, end, 1);
+	}
+
+	public void release(String carType, long start, long end) {
+		update(carType, start, end, -1);
+	}
+
+	/**
+	 * Check whether all cars of the given type are booked for the whole of at
+	 * least one day that the closed interval [start, end] touches.
+	 */
+	public boolean isFullyBooked(String carType, long start, long end) {
+		TypeCalendar calendar = calendars.get(carType);
+		if (calendar == null) {
+			return true;
+		}
+		int from = Math.max((int) Math.floorDiv(start, DAY), calendar.firstDay);
+		int to = Math.min((int) Math.floorDiv(end, DAY), calendar.firstDay + calendar.booked.length - 1);
+		for (int day = from; day <= to; day++) {
+			if (calendar.booked[day - calendar.firstDay] >= calendar.fleetSize) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void update(String carType, long start, long end, int delta) {
+		// only the days that lie entirely inside [start, end]
+		int from = (int) -Math.floorDiv(-start, DAY);
+		int to = (int) Math.floorDiv(end + 1, DAY) - 1;
+		if (from > to) {
+			return;
+		}
+		TypeCalendar calendar = calendars.computeIfAbsent(carType, t -> new TypeCalendar());
+		calendar.ensureRange(from, to);
+		for (int day = from; day <= to; day++) {
+			calendar.booked[day - calendar.firstDay] += delta;
+		}
+	}
+
+	private static class TypeCalendar {
+
+		private int fleetSize;
+		private int firstDay;
+		private int[] booked = new int[0];
+
+		private void ensureRange(int from, int to) {
+			if (booked.length == 0) {
+				firstDay = from;
+				booked = new int[to - from + 1];
+				return;
+			}
+			int lastDay = firstDay + booked.length - 1;
+			if (from >= firstDay && to <= lastDay) {
+				return;
+			}
+			int newFirst = Math.min(from, firstDay);
+			int newLast = Math.max(to, lastDay);
+			int[] grown = new int[newLast - newFirst + 1];
+			System.arraycopy(booked, 0, grown, firstDay - newFirst, booked.length);
+			firstDay = newFirst;
+			booked = grown;
+		}
+	}
+}
@@ -0,0 +1,151 @@
+package ds.gae.helper;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Sorted index over closed [start, end] intervals of epoch millis.
+ * 
+ * Intervals are kept ordered by start, together with a running maximum of the
+ * ends, so an overlap check is a single binary search. Adding or removing an
+ * interval shifts the arrays in place; many intervals at once, as when a car
+ * is loaded, are better added with addAll, which sorts them only once.
+ */
+public class IntervalIndex {
+
+	private long[] starts;
+	private long[] ends;
+	private long[] maxEnds;
+	private int size;
+
+	public IntervalIndex() {
+		this(8);
+	}
+
+	public IntervalIndex(int initialCapacity) {
+		int capacity = Math.max(1, initialCapacity);
+		starts = new long[capacity];
+		ends = new long[capacity];
+		maxEnds = new long[capacity];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public void add(long start, long end) {
+		if (size == starts.length) {
+			int capacity = size * 2;
+			starts = Arrays.copyOf(starts, capacity);
+			ends = Arrays.copyOf(ends, capacity);
+			maxEnds = Arrays.copyOf(maxEnds, capacity);
+		}
+		int i = upperBound(start);
+		System.arraycopy(starts, i, starts, i + 1, size - i);
+		System.arraycopy(ends, i, ends, i + 1, size - i);
+		starts[i] = start;
+		ends[i] = end;
+		size++;
+		updateMaxEnds(i);
+	}
+
+	/**
+	 * Add the intervals [newStarts[i], newEnds[i]] in one pass: they are sorted
+	 * once and merged with the indexed intervals, instead of shifting the
+	 * arrays for each of them.
+	 */
+	public void addAll(long[] newStarts, long[] newEnds) {
+		int count = newStarts.length;
+		if (count == 0) {
+			return;
+		}
+		Integer[] order = new Integer[count];
+		for (int j = 0; j < count; j++) {
+			order[j] = j;
+		}
+		Arrays.sort(order, Comparator.comparingLong(j -> newStarts[j]));
+
+		int capacity = Math.max(starts.length, size + count);
+		long[] mergedStarts = new long[capacity];
+		long[] mergedEnds = new long[capacity];
+		int i = 0;
+		int k = 0;
+		for (int m = 0; m < size + count; m++) {
+			// on equal starts the indexed interval goes first, as with add
+			if (k == count || (i < size && starts[i] <= newStarts[order[k]])) {
+				mergedStarts[m] = starts[i];
+				mergedEnds[m] = ends[i];
+				i++;
+			} else {
+				mergedStarts[m] = newStarts[order[k]];
+				mergedEnds[m] = newEnds[order[k]];
+				k++;
+			}
+		}
+		starts = mergedStarts;
+		ends = mergedEnds;
+		maxEnds = new long[capacity];
+		size += count;
+		updateMaxEnds(0);
+	}
+
+	public boolean remove(long start, long end) {
+		for (int i = upperBound(start) - 1; i >= 0 && starts[i] == start; i--) {
+			if (ends[i] == end) {
+				System.arraycopy(starts, i + 1, starts, i, size - i - 1);
+				System.arraycopy(ends, i + 1, ends, i, size - i - 1);
+				size--;
+				updateMaxEnds(i);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Check whether any indexed interval shares at least one instant with the
+	 * closed interval [start, end].
+	 */
+	public boolean overlaps(long start, long end) {
+		// last interval starting at or before the given end
+		int i = upperBound(end) - 1;
+		return i >= 0 && maxEnds[i] >= start;
+	}
+
+	/**
+	 * Free time around the closed interval [start, end]: the time between the
+	 * latest end before it and its start, plus the time between its end and the
+	 * earliest start after it. An unbounded side counts as Long.MAX_VALUE / 4.
+	 */
+	public long slack(long start, long end) {
+		long unbounded = Long.MAX_VALUE / 4;
+		int before = upperBound(start - 1) - 1;
+		int after = upperBound(end);
+		long slackBefore = before >= 0 ? Math.min(start - maxEnds[before], unbounded) : unbounded;
+		long slackAfter = after < size ? Math.min(starts[after] - end, unbounded) : unbounded;
+		return slackBefore + slackAfter;
+	}
+
+	// index of the first interval whose start is strictly after the given value
+	private int upperBound(long value) {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (starts[mid] <= value) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	private void updateMaxEnds(int from) {
+		long max = from == 0 ? Long.MIN_VALUE : maxEnds[from - 1];
+		for (int i = from; i < size; i++) {
+			max = Math.max(max, ends[i]);
+			maxEnds[i] = max;
+		}
+	}
+}
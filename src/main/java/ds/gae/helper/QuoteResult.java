@@ -0,0 +1,55 @@
+package ds.gae.helper;
+
+import java.io.Serializable;
+
+/**
+ * Outcome of quoting one set of reservation constraints: either a quote, or
+ * the reason why no quote could be made.
+ */
+public class QuoteResult implements Serializable {
+
+    private ReservationConstraints constraints;
+    private Quote quote;
+    private String failureReason;
+
+    private QuoteResult(ReservationConstraints constraints, Quote quote, String failureReason) {
+        this.constraints = constraints;
+        this.quote = quote;
+        this.failureReason = failureReason;
+    }
+
+    public static QuoteResult success(ReservationConstraints constraints, Quote quote) {
+        return new QuoteResult(constraints, quote, null);
+    }
+
+    public static QuoteResult failure(ReservationConstraints constraints, String failureReason) {
+        return new QuoteResult(constraints, null, failureReason);
+    }
+
+    public ReservationConstraints getConstraints() {
+        return constraints;
+    }
+
+    public boolean isSuccess() {
+        return quote != null;
+    }
+
+    /**
+     * @return the quote, or null if quoting failed
+     */
+    public Quote getQuote() {
+        return quote;
+    }
+
+    /**
+     * @return why quoting failed, or null if it succeeded
+     */
+    public String getFailureReason() {
+        return failureReason;
+    }
+
+    @Override
+    public String toString() {
+        return isSuccess() ? quote.toString() : String.format("No quote for %s: %s", constraints, failureReason);
+    }
+}
@@ -0,0 +1,18 @@
+package ds.gae.helper;
+
+/**
+ * Order in which the reservations of a renter are listed.
+ */
+public enum ReservationOrder {
+
+    /**
+     * Reservations that have not ended yet, the first to end first, followed
+     * by past reservations, the most recent first.
+     */
+    UPCOMING_FIRST,
+
+    /**
+     * All reservations by start date, the earliest first.
+     */
+    CHRONOLOGICAL
+}
@@ -0,0 +1,36 @@
+package ds.gae.helper;
+
+import java.util.List;
+
+import ds.gae.entities.Reservation;
+
+/**
+ * One page of the reservations of a renter, together with the token that
+ * continues the listing on the next page.
+ */
+public class ReservationPage {
+
+    private final List<Reservation> reservations;
+    private final String nextPageToken;
+
+    public ReservationPage(List<Reservation> reservations, String nextPageToken) {
+        this.reservations = reservations;
+        this.nextPageToken = nextPageToken;
+    }
+
+    public List<Reservation> getReservations() {
+        return reservations;
+    }
+
+    /**
+     * @return the token to pass to get the next page, or null if this is the
+     * last page
+     */
+    public String getNextPageToken() {
+        return nextPageToken;
+    }
+
+    public boolean hasNextPage() {
+        return nextPageToken != null;
+    }
+}
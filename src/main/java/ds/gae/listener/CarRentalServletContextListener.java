@@ -3,8 +3,14 @@ package ds.gae.listener;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.StringTokenizer;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -14,10 +20,22 @@ import javax.servlet.ServletContextListener;
 import com.google.cloud.datastore.*;
 
 import ds.gae.CarRentalModel;
+import ds.gae.datastore.Datastores;
 
 public class CarRentalServletContextListener implements ServletContextListener {
 
-	private static Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+	private static Datastore datastore = Datastores.get();
+	
+	private static final Logger logger = Logger.getLogger(CarRentalServletContextListener.class.getName());
+	
+	// maximum number of companies imported at the same time
+	private static final int MAX_IMPORT_THREADS = 4;
+	
+	private static final Map<String, String> DUMMY_DATA = new LinkedHashMap<>();
+	static {
+		DUMMY_DATA.put("Hertz", "hertz.csv");
+		DUMMY_DATA.put("Dockx", "dockx.csv");
+	}
 	
     @Override
     public void contextInitialized(ServletContextEvent arg0) {
@@ -31,83 +49,66 @@ public class CarRentalServletContextListener implements ServletContextListener {
     }
 
     private boolean isDummyDataAvailable() {
-        // If the Hertz car rental company is in the datastore, we assume the dummy data
-        // is available
-        return CarRentalModel.get().getAllRentalCompanyNames().contains("Hertz");
-
+        // The marker is only written once every company has been imported
+        return datastore.get(getDummyDataMarkerKey()) != null;
+    }
+    
+    private static Key getDummyDataMarkerKey() {
+    	return Key.newBuilder(CarRentalModel.get().modelKey, "DummyData", "marker").build();
     }
 
     private void addDummyData() {
-        loadRental("Hertz", "hertz.csv");
-        loadRental("Dockx", "dockx.csv");
+    	// import the companies in parallel without holding up the starting request
+    	ExecutorService executor = Executors.newFixedThreadPool(Math.min(DUMMY_DATA.size(), MAX_IMPORT_THREADS));
+    	List<CompletableFuture<Boolean>> imports = new ArrayList<>();
+    	for (Map.Entry<String, String> company : DUMMY_DATA.entrySet()) {
+    		imports.add(CompletableFuture.supplyAsync(() -> loadRental(company.getKey(), company.getValue()), executor));
+    	}
+    	executor.shutdown();
+    	
+    	CompletableFuture.allOf(imports.toArray(new CompletableFuture<?>[imports.size()])).thenRun(() -> {
+    		CarRentalModel.get().bumpCatalogVersion();
+    		if (imports.stream().allMatch(CompletableFuture::join)) {
+    			datastore.put(Entity.newBuilder(getDummyDataMarkerKey()).build());
+    			logger.log(Level.INFO, "dummy data loaded");
+    		}
+    	}).exceptionally(ex -> {
+    		logger.log(Level.SEVERE, "could not complete loading dummy data", ex);
+    		return null;
+    	});
     }
 
-    private void loadRental(String crcName, String datafile) {
-        Logger.getLogger(CarRentalServletContextListener.class.getName()).log(Level.INFO, "loading {0} from file {1}",
-                new Object[] { crcName, datafile });
+    private boolean loadRental(String crcName, String datafile) {
+        logger.log(Level.INFO, "loading {0} from file {1}", new Object[] { crcName, datafile });
         try {
-        	loadData(crcName, datafile);
+        	importData(crcName, datafile);
+        	return true;
         } catch (NumberFormatException ex) {
-            Logger.getLogger(CarRentalServletContextListener.class.getName()).log(Level.SEVERE, "bad file", ex);
+            logger.log(Level.SEVERE, "bad file", ex);
         } catch (IOException ex) {
-            Logger.getLogger(CarRentalServletContextListener.class.getName()).log(Level.SEVERE, null, ex);
+            logger.log(Level.SEVERE, null, ex);
+        } catch (RuntimeException ex) {
+            logger.log(Level.SEVERE, "<" + crcName + "> import failed", ex);
         }
+        return false;
     }
 
     public static void loadData(String crcName, String datafile) throws NumberFormatException, IOException {
-        int carId = 1;
+        importData(crcName, datafile);
+        CarRentalModel.get().bumpCatalogVersion();
+    }
 
+    // imports the company without bumping the catalog version
+    private static void importData(String crcName, String datafile) throws NumberFormatException, IOException {
         // Create company key
         Key crcKey = Key.newBuilder(CarRentalModel.get().modelKey, "CarRentalCompany", crcName).build();
         
-        Entity crcEntityTask = Entity.newBuilder(crcKey).build();
-        
         // open file from jar
-        BufferedReader in = new BufferedReader(new InputStreamReader(
-                CarRentalServletContextListener.class.getClassLoader().getResourceAsStream(datafile)));
-        // while next line exists
-        while (in.ready()) {
-            // read line
-            String line = in.readLine();
-            // if comment: skip
-            if (line.startsWith("#")) {
-                continue;
-            }
-            // tokenize on ,
-            StringTokenizer csvReader = new StringTokenizer(line, ",");
-
-            // Parse CarType data
-            String carTypeName = csvReader.nextToken();
-            int nbOfSeats = Integer.parseInt(csvReader.nextToken());
-            float trunkSpace = Float.parseFloat(csvReader.nextToken());
-            double rentalPricePerDay = Double.parseDouble(csvReader.nextToken());
-            boolean smokingAllowed = Boolean.parseBoolean(csvReader.nextToken());
-            
-            
-            // create N new cars with given type, where N is the 5th field
-            for (int i = Integer.parseInt(csvReader.nextToken()); i > 0; i--) {
-            	int nextCarId = carId++;
-                Key newCarKey = Key.newBuilder(crcKey, "Car",nextCarId)
-                		.build();
-                
-                Entity carEntityTask = Entity.newBuilder(newCarKey)
-                		.set("reservations_made", 0)
-                		.build();
-                
-                Key newCarTypeKey = Key.newBuilder(newCarKey, "CarType", carTypeName).build();
-                
-                Entity carTypeEntityTask = Entity.newBuilder(newCarTypeKey)
-                		.set("nbOfSeats", nbOfSeats)
-                		.set("trunkSpace", trunkSpace)
-                		.set("rentalPricePerDay", rentalPricePerDay)
-                		.set("smokingAllowed", smokingAllowed)
-                		.build();
-                
-            	datastore.put(carEntityTask, carTypeEntityTask);
-            }
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                CarRentalServletContextListener.class.getClassLoader().getResourceAsStream(datafile),
+                StandardCharsets.UTF_8))) {
+            new FleetImporter(datastore).importFleet(crcKey, in);
         }
-        
-        datastore.put(crcEntityTask);
     }
 
     @Override
@@ -0,0 +1,118 @@
+package ds.gae.listener;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.cloud.datastore.*;
+
+/**
+ * Streams a fleet CSV into the datastore, writing the car types and cars of
+ * one company in batched puts.
+ * 
+ * Every line describes one car type:
+ * {@code name,nb of seats,trunk space in liters,price per day,smoking,number of cars}.
+ * Empty lines and lines starting with '#' are skipped.
+ */
+public class FleetImporter {
+
+    private static final Logger logger = Logger.getLogger(FleetImporter.class.getName());
+
+    /**
+     * Maximum number of entities the datastore accepts in a single put.
+     */
+    public static final int MAX_BATCH_SIZE = 500;
+
+    private final Datastore datastore;
+    private final int batchSize;
+
+    private final List<FullEntity<?>> batch = new ArrayList<>();
+    private int batches;
+
+    public FleetImporter(Datastore datastore) {
+        this(datastore, MAX_BATCH_SIZE);
+    }
+
+    public FleetImporter(Datastore datastore, int batchSize) {
+        if (batchSize < 1 || batchSize > MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("Batch size must be between 1 and " + MAX_BATCH_SIZE);
+        }
+        this.datastore = datastore;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Import the fleet read from the given CSV as the cars of the given company.
+     * The company entity itself is written last, once all of its cars exist.
+     *
+     * @param crcKey key of the car rental company
+     * @param csv    the fleet CSV
+     * @return the number of imported cars
+     * @throws IOException           the CSV could not be read
+     * @throws NumberFormatException a numeric field of the CSV is malformed
+     */
+    public int importFleet(Key crcKey, Reader csv) throws IOException {
+        long startNanos = System.nanoTime();
+        int nbOfCars = 0;
+        int carId = 1;
+        batches = 0;
+
+        BufferedReader in = csv instanceof BufferedReader ? (BufferedReader) csv : new BufferedReader(csv);
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split(",");
+            if (fields.length < 6) {
+                throw new NumberFormatException("Expected 6 fields but got " + fields.length + ": " + line);
+            }
+
+            String carTypeName = fields[0].trim();
+            add(Entity.newBuilder(Key.newBuilder(crcKey, "CarType", carTypeName).build())
+                    .set("nbOfSeats", Integer.parseInt(fields[1].trim()))
+                    .set("trunkSpace", Float.parseFloat(fields[2].trim()))
+                    .set("rentalPricePerDay", Double.parseDouble(fields[3].trim()))
+                    .set("smokingAllowed", Boolean.parseBoolean(fields[4].trim()))
+                    .build());
+
+            for (int i = Integer.parseInt(fields[5].trim()); i > 0; i--) {
+                add(Entity.newBuilder(Key.newBuilder(crcKey, "Car", carId++).build())
+                        .set("reservations_made", 0)
+                        .set("carType", carTypeName)
+                        .build());
+                nbOfCars++;
+            }
+        }
+        flush();
+
+        // every car refers to the catalog, so quotes can query cars by type
+        datastore.put(Entity.newBuilder(crcKey).set("catalogComplete", true).build());
+
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        logger.log(Level.INFO, "<{0}> Imported {1} cars in {2} batches in {3} s ({4} cars/s)",
+                new Object[] { crcKey.getName(), nbOfCars, batches, String.format("%.3f", seconds),
+                        String.format("%.0f", nbOfCars / Math.max(seconds, 1e-9)) });
+        return nbOfCars;
+    }
+
+    private void add(FullEntity<?> entity) {
+        batch.add(entity);
+        if (batch.size() >= batchSize) {
+            flush();
+        }
+    }
+
+    private void flush() {
+        if (batch.isEmpty()) {
+            return;
+        }
+        datastore.put(batch.toArray(new FullEntity<?>[batch.size()]));
+        batch.clear();
+        batches++;
+    }
+}
@@ -0,0 +1,35 @@
+package ds.gae.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Monotonic count of events.
+ */
+public class Counter extends Metric {
+
+	private final AtomicLong value = new AtomicLong();
+
+	Counter(String name, String help, String labels) {
+		super(name, help, labels);
+	}
+
+	public void increment() {
+		value.incrementAndGet();
+	}
+
+	public long get() {
+		return value.get();
+	}
+
+	@Override
+	String getType() {
+		return "counter";
+	}
+
+	@Override
+	void writeSamples(Writer out) throws IOException {
+		writeSample(out, "", null, Long.toString(value.get()));
+	}
+}
@@ -0,0 +1,134 @@
+package ds.gae.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histogram with a fixed number of buckets, in the style of
+ * HdrHistogram. Values are kept in microseconds: exactly below 64 us, and
+ * above that in 32 linear sub-buckets per power of two, so every recorded
+ * value is known to within about 3%. Values above 2^36 us (19 hours) land in
+ * the last bucket.
+ *
+ * Recording only updates atomic counters, it never allocates or locks.
+ */
+public class LatencyHistogram extends Metric {
+
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int MAX_SHIFT = 30;
+	private static final int BUCKETS = 2 * SUB_BUCKETS + MAX_SHIFT * SUB_BUCKETS;
+
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sumMicros = new AtomicLong();
+	private final AtomicLong maxMicros = new AtomicLong();
+
+	LatencyHistogram(String name, String help, String labels) {
+		super(name, help, labels);
+	}
+
+	public void recordNanos(long nanos) {
+		long micros = Math.max(nanos / 1000, 0);
+		counts.incrementAndGet(indexOf(micros));
+		count.incrementAndGet();
+		sumMicros.addAndGet(micros);
+		long max = maxMicros.get();
+		while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+			max = maxMicros.get();
+		}
+	}
+
+	/**
+	 * Record the time passed since the given System.nanoTime().
+	 */
+	public void recordSince(long startNanos) {
+		recordNanos(System.nanoTime() - startNanos);
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * The highest value, in microseconds, below which the given fraction of
+	 * the recorded values lies.
+	 */
+	public long getValueAtQuantile(double quantile) {
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		return valueAtQuantile(snapshot, total, quantile);
+	}
+
+	private long valueAtQuantile(long[] snapshot, long total, double quantile) {
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max((long) Math.ceil(quantile * total), 1);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(highestValueIn(i), maxMicros.get());
+			}
+		}
+		return maxMicros.get();
+	}
+
+	static int indexOf(long micros) {
+		if (micros < 2 * SUB_BUCKETS) {
+			return (int) micros;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS;
+		if (shift > MAX_SHIFT) {
+			return BUCKETS - 1;
+		}
+		return 2 * SUB_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) (micros >>> shift) - SUB_BUCKETS;
+	}
+
+	static long highestValueIn(int index) {
+		if (index == BUCKETS - 1) {
+			// also holds every value above the range
+			return Long.MAX_VALUE;
+		}
+		if (index < 2 * SUB_BUCKETS) {
+			return index;
+		}
+		int shift = (index - 2 * SUB_BUCKETS) / SUB_BUCKETS + 1;
+		long top = (index - 2 * SUB_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+		return ((top + 1) << shift) - 1;
+	}
+
+	@Override
+	String getType() {
+		return "summary";
+	}
+
+	@Override
+	void writeSamples(Writer out) throws IOException {
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		for (double quantile : QUANTILES) {
+			writeSample(out, "", "quantile=\"" + quantile + "\"", seconds(valueAtQuantile(snapshot, total, quantile)));
+		}
+		writeSample(out, "", "quantile=\"1.0\"", seconds(maxMicros.get()));
+		writeSample(out, "_sum", null, seconds(sumMicros.get()));
+		writeSample(out, "_count", null, Long.toString(total));
+	}
+
+	private static String seconds(long micros) {
+		return Double.toString(micros / 1e6);
+	}
+}
@@ -0,0 +1,52 @@
+package ds.gae.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A named time series, written out in the Prometheus text exposition format.
+ * Metrics with the same name form one family and differ in their labels.
+ */
+public abstract class Metric {
+
+	private final String name;
+	private final String help;
+	private final String labels;
+
+	Metric(String name, String help, String labels) {
+		this.name = name;
+		this.help = help;
+		this.labels = labels;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	String getHelp() {
+		return help;
+	}
+
+	abstract String getType();
+
+	abstract void writeSamples(Writer out) throws IOException;
+
+	void writeSample(Writer out, String suffix, String extraLabel, String value) throws IOException {
+		out.write(name);
+		out.write(suffix);
+		if (!labels.isEmpty() || extraLabel != null) {
+			out.write('{');
+			out.write(labels);
+			if (extraLabel != null) {
+				if (!labels.isEmpty()) {
+					out.write(',');
+				}
+				out.write(extraLabel);
+			}
+			out.write('}');
+		}
+		out.write(' ');
+		out.write(value);
+		out.write('\n');
+	}
+}
@@ -0,0 +1,67 @@
+package ds.gae.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Registry of all metrics of the application. Metrics are created once, as
+ * constants of the classes that record them, and served by the MetricsServlet.
+ */
+public final class Metrics {
+
+	private static final List<Metric> metrics = new CopyOnWriteArrayList<>();
+
+	private Metrics() {
+	}
+
+	/**
+	 * A latency histogram, optionally with one label, for example
+	 * histogram("ds_gae_servlet_duration_seconds", "...", "servlet", "Login").
+	 */
+	public static LatencyHistogram histogram(String name, String help, String... label) {
+		return register(new LatencyHistogram(name, help, labels(label)));
+	}
+
+	public static Counter counter(String name, String help, String... label) {
+		return register(new Counter(name, help, labels(label)));
+	}
+
+	private static <M extends Metric> M register(M metric) {
+		metrics.add(metric);
+		return metric;
+	}
+
+	private static String labels(String... label) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i + 1 < label.length; i += 2) {
+			if (sb.length() > 0) {
+				sb.append(',');
+			}
+			sb.append(label[i]).append("=\"").append(label[i + 1]).append('"');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Write all metrics in the Prometheus text exposition format.
+	 */
+	public static void writeTo(Writer out) throws IOException {
+		Map<String, List<Metric>> families = new LinkedHashMap<>();
+		for (Metric metric : metrics) {
+			families.computeIfAbsent(metric.getName(), k -> new ArrayList<>()).add(metric);
+		}
+		for (List<Metric> family : families.values()) {
+			Metric first = family.get(0);
+			out.write("# HELP " + first.getName() + " " + first.getHelp() + "\n");
+			out.write("# TYPE " + first.getName() + " " + first.getType() + "\n");
+			for (Metric metric : family) {
+				metric.writeSamples(out);
+			}
+		}
+	}
+}
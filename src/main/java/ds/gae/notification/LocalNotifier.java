@@ -0,0 +1,30 @@
+package ds.gae.notification;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps notifications in memory and logs them instead of sending them, for
+ * running without a mail server.
+ */
+public class LocalNotifier implements Notifier {
+
+	private static final Logger logger = Logger.getLogger(LocalNotifier.class.getName());
+
+	private final List<String[]> sent = new ArrayList<>();
+
+	@Override
+	public synchronized void send(String recipient, String subject, String body) {
+		sent.add(new String[] { recipient, subject, body });
+		logger.log(Level.INFO, "To {0}: {1}\n{2}", new Object[] { recipient, subject, body });
+	}
+
+	/**
+	 * @return every message sent so far as {recipient, subject, body}
+	 */
+	public synchronized List<String[]> getSent() {
+		return new ArrayList<>(sent);
+	}
+}
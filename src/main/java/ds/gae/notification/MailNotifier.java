@@ -0,0 +1,26 @@
+package ds.gae.notification;
+
+import java.util.Properties;
+
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Sends notifications as e-mail through the App Engine mail service.
+ */
+public class MailNotifier implements Notifier {
+
+	@Override
+	public void send(String recipient, String subject, String body) throws Exception {
+		Session session = Session.getDefaultInstance(new Properties());
+		Message msg = new MimeMessage(session);
+		msg.setFrom(new InternetAddress("admin@adminmail.com", "Admin"));
+		msg.addRecipient(Message.RecipientType.TO, new InternetAddress(recipient));
+		msg.setSubject(subject);
+		msg.setText(body);
+		Transport.send(msg);
+	}
+}
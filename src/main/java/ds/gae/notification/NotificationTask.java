@@ -0,0 +1,163 @@
+package ds.gae.notification;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.taskqueue.DeferredTask;
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.Query;
+import com.google.cloud.datastore.QueryResults;
+import com.google.cloud.datastore.Transaction;
+import com.google.cloud.datastore.StructuredQuery.CompositeFilter;
+import com.google.cloud.datastore.StructuredQuery.OrderBy;
+import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
+
+import ds.gae.datastore.Datastores;
+
+/**
+ * Delivers all pending notifications of one recipient as a single message.
+ * A failed delivery throws, so the task queue retries it with backoff; the
+ * messages stay pending in the outbox until they were delivered. Delivered
+ * messages are marked sent and only removed a day later.
+ *
+ * Before reading the messages a task claims the outbox in a transaction, so
+ * two tasks for the same recipient never send the same messages. A task that
+ * finds the outbox claimed throws and is retried once the other one is done.
+ */
+public class NotificationTask implements DeferredTask {
+
+	private static final Logger logger = Logger.getLogger(NotificationTask.class.getName());
+
+	// how long a claim holds if its task never releases it
+	private static final long CLAIM_MILLIS = 60_000;
+	// how long a sent message is kept, well beyond the retries of the tasks that queue messages
+	private static final long SENT_RETENTION_MILLIS = 24 * 60 * 60 * 1000L;
+
+	private String recipient;
+
+	public NotificationTask(String recipient) {
+		this.recipient = recipient;
+	}
+
+	@Override
+	public void run() {
+		Key outboxKey = Notifications.getOutboxKey(recipient);
+		long claimedUntil = claim(outboxKey);
+		try {
+			deliver(outboxKey);
+		} finally {
+			release(outboxKey, claimedUntil);
+		}
+	}
+
+	private void deliver(Key outboxKey) {
+		Datastore datastore = Datastores.get();
+
+		Query<Entity> query = Query.newEntityQueryBuilder()
+				.setKind("Notification")
+				.setFilter(CompositeFilter.and(
+						PropertyFilter.hasAncestor(outboxKey),
+						PropertyFilter.eq("sent", false)))
+				.setOrderBy(OrderBy.asc("created"))
+				.build();
+		QueryResults<Entity> results = datastore.run(query);
+
+		List<Entity> pending = new ArrayList<>();
+		while (results.hasNext()) {
+			pending.add(results.next());
+		}
+		if (pending.isEmpty()) {
+			// an earlier task already delivered them
+			return;
+		}
+
+		String subject;
+		String body;
+		if (pending.size() == 1) {
+			subject = pending.get(0).getString("subject");
+			body = pending.get(0).getString("body");
+		} else {
+			subject = pending.size() + " reservation updates";
+			StringBuilder sb = new StringBuilder();
+			for (Entity notification : pending) {
+				sb.append(notification.getString("subject")).append('\n')
+						.append(notification.getString("body")).append('\n');
+			}
+			body = sb.toString();
+		}
+
+		try {
+			Notifications.getNotifier().send(recipient, subject, body);
+		} catch (Exception e) {
+			logger.log(Level.WARNING, "Delivering notifications to " + recipient + " failed, retrying", e);
+			throw new RuntimeException(e);
+		}
+
+		// kept as tombstones, so a caller that is retried does not queue them again
+		long now = System.currentTimeMillis();
+		List<Entity> sent = new ArrayList<>();
+		for (Entity notification : pending) {
+			sent.add(Entity.newBuilder(notification).set("sent", true).set("sentAt", now).build());
+		}
+		datastore.put(sent.toArray(new Entity[sent.size()]));
+
+		removeExpired(datastore, outboxKey, now - SENT_RETENTION_MILLIS);
+	}
+
+	private static void removeExpired(Datastore datastore, Key outboxKey, long sentBefore) {
+		Query<Key> query = Query.newKeyQueryBuilder()
+				.setKind("Notification")
+				.setFilter(CompositeFilter.and(
+						PropertyFilter.hasAncestor(outboxKey),
+						PropertyFilter.eq("sent", true),
+						PropertyFilter.lt("sentAt", sentBefore)))
+				.build();
+		QueryResults<Key> results = datastore.run(query);
+		List<Key> expired = new ArrayList<>();
+		while (results.hasNext()) {
+			expired.add(results.next());
+		}
+		if (!expired.isEmpty()) {
+			datastore.delete(expired.toArray(new Key[expired.size()]));
+		}
+	}
+
+	private long claim(Key outboxKey) {
+		Transaction tx = Datastores.get().newTransaction();
+		try {
+			long now = System.currentTimeMillis();
+			Entity outbox = tx.get(outboxKey);
+			if (outbox != null && outbox.getLong("claimedUntil") > now) {
+				throw new IllegalStateException("Notifications to " + recipient + " are being delivered by another task");
+			}
+			long claimedUntil = now + CLAIM_MILLIS;
+			tx.put(Entity.newBuilder(outboxKey).set("claimedUntil", claimedUntil).build());
+			tx.commit();
+			return claimedUntil;
+		} finally {
+			if (tx.isActive())
+				tx.rollback();
+		}
+	}
+
+	// best effort, an unreleased claim expires on its own
+	private void release(Key outboxKey, long claimedUntil) {
+		Transaction tx = Datastores.get().newTransaction();
+		try {
+			Entity outbox = tx.get(outboxKey);
+			if (outbox != null && outbox.getLong("claimedUntil") == claimedUntil) {
+				tx.delete(outboxKey);
+				tx.commit();
+			}
+		} catch (RuntimeException e) {
+			logger.log(Level.WARNING, "Releasing the outbox of " + recipient + " failed", e);
+		} finally {
+			if (tx.isActive())
+				tx.rollback();
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package ds.gae.notification;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.StringValue;
+import com.google.cloud.datastore.Transaction;
+
+import ds.gae.datastore.Datastores;
+import ds.gae.tasks.TaskDispatchers;
+
+/**
+ * Outbox for notifications. Messages are stored in the datastore and
+ * delivered by a NotificationTask on its own queue, so callers never wait for
+ * the mail service.
+ */
+public final class Notifications {
+
+	// delay before delivery, so messages arriving close together share a task
+	private static final long DELIVERY_DELAY_MILLIS = 2000;
+
+	private static Datastore datastore = Datastores.get();
+
+	private static Notifier notifier = "local".equals(System.getProperty("ds.gae.notifier"))
+			? new LocalNotifier()
+			: new MailNotifier();
+
+	private Notifications() {
+	}
+
+	public static Notifier getNotifier() {
+		return notifier;
+	}
+
+	public static void setNotifier(Notifier notifier) {
+		Notifications.notifier = notifier;
+	}
+
+	/**
+	 * Store a message for the given recipient and schedule its delivery.
+	 */
+	public static void enqueue(String recipient, String subject, String body) {
+		enqueue(recipient, null, subject, body);
+	}
+
+	/**
+	 * Store a message for the given recipient and schedule its delivery.
+	 * Enqueueing again with the same message id does nothing once the message
+	 * was stored, or sent, so a caller that is retried does not send it twice.
+	 *
+	 * @param messageId id of the message in the outbox, or null for a new id
+	 */
+	public static void enqueue(String recipient, String messageId, String subject, String body) {
+		if (messageId == null) {
+			datastore.put(newMessage(datastore.allocateId(Key.newBuilder(getOutboxKey(recipient), "Notification").build()),
+					subject, body));
+		} else {
+			Key key = Key.newBuilder(getOutboxKey(recipient), "Notification", messageId).build();
+			Transaction tx = datastore.newTransaction();
+			try {
+				Entity stored = tx.get(key);
+				if (stored != null && stored.getBoolean("sent")) {
+					return;
+				}
+				if (stored == null) {
+					tx.put(newMessage(key, subject, body));
+					tx.commit();
+				}
+			} finally {
+				if (tx.isActive())
+					tx.rollback();
+			}
+		}
+
+		// also when the message was stored before: its delivery may not have been scheduled
+		TaskDispatchers.dispatch("queue-notification", new NotificationTask(recipient), DELIVERY_DELAY_MILLIS);
+	}
+
+	private static Entity newMessage(Key key, String subject, String body) {
+		return Entity.newBuilder(key)
+				.set("subject", subject)
+				.set("body", StringValue.newBuilder(body).setExcludeFromIndexes(true).build())
+				.set("created", System.currentTimeMillis())
+				.set("sent", false)
+				.build();
+	}
+
+	static Key getOutboxKey(String recipient) {
+		return datastore.newKeyFactory().setKind("Outbox").newKey(recipient);
+	}
+}
@@ -0,0 +1,14 @@
+package ds.gae.notification;
+
+/**
+ * Delivers notifications to car renters.
+ */
+public interface Notifier {
+
+	/**
+	 * Deliver one message to the given recipient.
+	 *
+	 * @throws Exception the message could not be delivered and should be retried
+	 */
+	void send(String recipient, String subject, String body) throws Exception;
+}
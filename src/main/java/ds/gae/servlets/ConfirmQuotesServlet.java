@@ -13,11 +13,26 @@ import javax.servlet.http.HttpSession;
 import ds.gae.CarRentalModel;
 import ds.gae.ReservationException;
 import ds.gae.helper.Quote;
+import ds.gae.metrics.LatencyHistogram;
+import ds.gae.metrics.Metrics;
 import ds.gae.view.JSPSite;
 import ds.gae.view.Tools;
 
 @SuppressWarnings("serial")
 public class ConfirmQuotesServlet extends HttpServlet {
+
+    private static final LatencyHistogram latency = Metrics.histogram("ds_gae_servlet_duration_seconds",
+            "Time spent handling a request, by servlet", "servlet", "ConfirmQuotes");
+
+    @Override
+    protected void service(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        long start = System.nanoTime();
+        try {
+            super.service(req, resp);
+        } finally {
+            latency.recordSince(start);
+        }
+    }
         
     @SuppressWarnings("unchecked")
     @Override
@@ -1,7 +1,7 @@
 package ds.gae.servlets;
 
 import java.io.IOException;
-import java.text.ParseException;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
@@ -17,6 +17,8 @@ import ds.gae.CarRentalModel;
 import ds.gae.ReservationException;
 import ds.gae.helper.Quote;
 import ds.gae.helper.ReservationConstraints;
+import ds.gae.metrics.LatencyHistogram;
+import ds.gae.metrics.Metrics;
 import ds.gae.view.Tools;
 import ds.gae.view.JSPSite;
 
@@ -25,12 +27,25 @@ public class CreateQuoteServlet extends HttpServlet {
 
     private static Logger logger = Logger.getLogger(CreateQuoteServlet.class.getName());
 
+    private static final LatencyHistogram latency = Metrics.histogram("ds_gae_servlet_duration_seconds",
+            "Time spent handling a request, by servlet", "servlet", "CreateQuote");
+
+    @Override
+    protected void service(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        long start = System.nanoTime();
+        try {
+            super.service(req, resp);
+        } finally {
+            latency.recordSince(start);
+        }
+    }
+
     @SuppressWarnings("unchecked")
     @Override
     protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
         try {
-            Date startDate = Tools.DATE_FORMAT.parse(req.getParameter("startDate"));
-            Date endDate = Tools.DATE_FORMAT.parse(req.getParameter("endDate"));
+            Date startDate = Tools.parseDate(req.getParameter("startDate"));
+            Date endDate = Tools.parseDate(req.getParameter("endDate"));
             String carType = req.getParameter("carType");
             String crc = req.getParameter("crc");
             String renter = (String) req.getSession().getAttribute("renter");
@@ -57,9 +72,12 @@ public class CreateQuoteServlet extends HttpServlet {
             req.getSession().setAttribute("quotes", quotes);
 
             resp.sendRedirect(JSPSite.CREATE_QUOTES.url());
-        } catch (ParseException e) {
-            logger.log(Level.SEVERE, e.getMessage(), e);
-            resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        } catch (DateTimeParseException e) {
+            // a mistyped date is the renter's error, not ours
+            logger.log(Level.FINE, e.getMessage(), e);
+            req.getSession().setAttribute("errorMsg",
+                    Tools.encodeHTML("Invalid date \"" + e.getParsedString() + "\", use the form dd.mm.yyyy"));
+            resp.sendRedirect(JSPSite.RESERVATION_ERROR.url());
         } catch (ReservationException e) {
             req.getSession().setAttribute("errorMsg", Tools.encodeHTML(e.getMessage()));
             resp.sendRedirect(JSPSite.RESERVATION_ERROR.url());
@@ -7,11 +7,26 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import ds.gae.metrics.LatencyHistogram;
+import ds.gae.metrics.Metrics;
 import ds.gae.view.JSPSite;
 
 @SuppressWarnings("serial")
 public class LoginServlet extends HttpServlet {
 
+    private static final LatencyHistogram latency = Metrics.histogram("ds_gae_servlet_duration_seconds",
+            "Time spent handling a request, by servlet", "servlet", "Login");
+
+    @Override
+    protected void service(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        long start = System.nanoTime();
+        try {
+            super.service(req, resp);
+        } finally {
+            latency.recordSince(start);
+        }
+    }
+
     @Override
     protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
         String email = req.getParameter("username");
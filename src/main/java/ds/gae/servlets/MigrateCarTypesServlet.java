@@ -0,0 +1,25 @@
+package ds.gae.servlets;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import ds.gae.CarRentalModel;
+
+/**
+ * Admin hook that queues the car type migration of every company. Running it
+ * again is harmless, companies that were migrated already are skipped.
+ */
+@SuppressWarnings("serial")
+public class MigrateCarTypesServlet extends HttpServlet {
+
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        CarRentalModel.get().migrateCarTypes();
+        resp.setContentType("text/plain; charset=utf-8");
+        resp.getWriter().println("Car type migration queued");
+    }
+}
@@ -0,0 +1,38 @@
+package ds.gae.servlets;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+
+import ds.gae.datastore.RpcStats;
+
+/**
+ * Counts the datastore calls of every request, including the deferred tasks
+ * the task queues deliver as requests.
+ */
+public class RpcAccountingFilter implements Filter {
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+    }
+
+    @Override
+    public void doFilter(ServletRequest req, ServletResponse resp, FilterChain chain) throws IOException, ServletException {
+        RpcStats stats = RpcStats.begin(((HttpServletRequest) req).getRequestURI());
+        try {
+            chain.doFilter(req, resp);
+        } finally {
+            stats.end();
+        }
+    }
+
+    @Override
+    public void destroy() {
+    }
+}
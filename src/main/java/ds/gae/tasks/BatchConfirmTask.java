@@ -0,0 +1,284 @@
+package ds.gae.tasks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.taskqueue.DeferredTask;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskHandle;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreException;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.Transaction;
+
+import ds.gae.CarRentalModel;
+import ds.gae.ReservationConflictException;
+import ds.gae.ReservationException;
+import ds.gae.allocation.CarAllocationStrategy;
+import ds.gae.datastore.Datastores;
+import ds.gae.entities.CarRentalCompany;
+import ds.gae.entities.Reservation;
+import ds.gae.helper.Quote;
+
+/**
+ * Group commit of the confirmation requests queued for one company.
+ *
+ * Requests wait on the pull queue, tagged with their company. One pass leases
+ * the pending requests, loads the company once and confirms them in as few
+ * transactions as the commit limit allows. A request that cannot be allocated
+ * is taken back out of the transaction and failed on its own; if a shared
+ * commit itself fails, its requests are confirmed one by one. A conflict with
+ * bookings committed elsewhere is not a failure: the pass is retried.
+ *
+ * Every request records its ConfirmationOutcome, keyed by the name of its pull
+ * task, in the transaction that decides it. A request leased again after its
+ * lease expired, or by an overlapping pass, is therefore never confirmed twice.
+ */
+public class BatchConfirmTask implements DeferredTask {
+
+	private static final Logger logger = Logger.getLogger(BatchConfirmTask.class.getName());
+
+	static final String PULL_QUEUE = "queue-quote-pull";
+
+	// maximum number of requests confirmed in one pass
+	private static final int MAX_BATCH_SIZE = 100;
+	private static final long LEASE_SECONDS = 60;
+	// delay before a pass starts, so requests arriving close together share it
+	private static final long BATCH_DELAY_MILLIS = 500;
+	// stays below the 500 mutations the datastore allows in one commit
+	private static final int MAX_MUTATIONS_PER_COMMIT = 400;
+
+	private Key modelKey;
+	private String crcName;
+	private CarAllocationStrategy allocationStrategy;
+
+	public BatchConfirmTask(Key modelKey, String crcName, CarAllocationStrategy allocationStrategy) {
+		this.modelKey = modelKey;
+		this.crcName = crcName;
+		this.allocationStrategy = allocationStrategy;
+	}
+
+	/**
+	 * Queue a confirmation request and schedule a pass over its company.
+	 */
+	public static void enqueue(Key modelKey, CarAllocationStrategy allocationStrategy, ConfirmationRequest request) {
+		String crcName = request.getQuotes()[0].getRentalCompany();
+		QueueFactory.getQueue(PULL_QUEUE).add(TaskOptions.Builder.withMethod(TaskOptions.Method.PULL)
+				.payload(request.toBytes())
+				.tag(crcName));
+		TaskDispatchers.dispatch("queue-quote", new BatchConfirmTask(modelKey, crcName, allocationStrategy),
+				BATCH_DELAY_MILLIS);
+	}
+
+	/**
+	 * A leased request together with the key its outcome is recorded under.
+	 */
+	private static class Leased {
+
+		private final TaskHandle handle;
+		private final ConfirmationRequest request;
+		private final Key outcomeKey;
+
+		private Leased(TaskHandle handle, ConfirmationRequest request, Key outcomeKey) {
+			this.handle = handle;
+			this.request = request;
+			this.outcomeKey = outcomeKey;
+		}
+
+		// an upper bound: a reservation and a car per quote, and the outcome
+		private int mutations() {
+			return 2 * request.getQuotes().length + 1;
+		}
+	}
+
+	@Override
+	public void run() {
+		Queue queue = QueueFactory.getQueue(PULL_QUEUE);
+		List<TaskHandle> leased = queue.leaseTasksByTag(LEASE_SECONDS, TimeUnit.SECONDS, MAX_BATCH_SIZE, crcName);
+		if (leased.isEmpty()) {
+			// an earlier pass already handled them
+			return;
+		}
+
+		List<Leased> requests = new ArrayList<>();
+		for (TaskHandle handle : leased) {
+			try {
+				requests.add(new Leased(handle, ConfirmationRequest.fromBytes(handle.getPayload()),
+						Key.newBuilder(modelKey, "ConfirmationOutcome", handle.getName()).build()));
+			} catch (Exception e) {
+				logger.log(Level.SEVERE, "<" + crcName + "> Dropping unreadable confirmation request", e);
+			}
+		}
+
+		try {
+			logger.log(Level.INFO, "<{0}> Confirming {1} requests in one pass", new Object[] { crcName, requests.size() });
+			confirmInGroups(requests);
+			CarRentalModel.get().invalidateCompany(crcName);
+			notifyRenters(requests);
+		} catch (RuntimeException e) {
+			// make the requests available again right away, the retry of this task picks them up
+			for (TaskHandle handle : leased) {
+				try {
+					queue.modifyTaskLease(handle, 0, TimeUnit.SECONDS);
+				} catch (RuntimeException releaseFailure) {
+					logger.log(Level.WARNING, "<" + crcName + "> Could not release a leased request", releaseFailure);
+				}
+			}
+			throw e;
+		}
+		queue.deleteTask(leased);
+	}
+
+	// splits the requests into commits that stay below the mutation limit
+	private void confirmInGroups(List<Leased> requests) {
+		CarRentalCompany crc = null;
+		List<Leased> group = new ArrayList<>();
+		int mutations = 0;
+		for (Leased request : requests) {
+			if (!group.isEmpty() && mutations + request.mutations() > MAX_MUTATIONS_PER_COMMIT) {
+				crc = confirmGroup(group, crc);
+				group = new ArrayList<>();
+				mutations = 0;
+			}
+			group.add(request);
+			mutations += request.mutations();
+		}
+		if (!group.isEmpty()) {
+			confirmGroup(group, crc);
+		}
+	}
+
+	/**
+	 * Decide all requests of the group in one transaction, against the company
+	 * loaded by the previous group if it committed.
+	 *
+	 * @return the company to use for the next group, or null if it has to be
+	 * loaded again
+	 */
+	private CarRentalCompany confirmGroup(List<Leased> group, CarRentalCompany crc) {
+		if (crc == null) {
+			crc = loadCompany();
+		}
+		Transaction tx = Datastores.get().newTransaction();
+		try {
+			List<Key> outcomeKeys = new ArrayList<>();
+			for (Leased request : group) {
+				outcomeKeys.add(request.outcomeKey);
+			}
+			// read in the transaction, so an overlapping pass conflicts instead of confirming twice
+			List<Entity> outcomes = tx.fetch(outcomeKeys.toArray(new Key[outcomeKeys.size()]));
+
+			for (int i = 0; i < group.size(); i++) {
+				Leased request = group.get(i);
+				if (outcomes.get(i) != null) {
+					continue;
+				}
+				List<Reservation> made = new ArrayList<>();
+				try {
+					for (Quote quote : request.request.getQuotes())
+						made.add(crc.confirmQuote(quote, tx));
+					tx.put(QuoteTask.newOutcome(request.outcomeKey, true));
+				} catch (ReservationException e) {
+					// drop this request and go on with the rest against the same company
+					for (Reservation res : made)
+						crc.withdrawReservation(tx, res);
+					tx.put(QuoteTask.newOutcome(request.outcomeKey, false));
+					logger.log(Level.INFO, "<{0}> Confirmation for {1} failed: {2}",
+							new Object[] { crcName, request.request.getMailAddress(), e.getMessage() });
+				}
+			}
+			tx.commit();
+			crc.reservationsCommitted();
+			return crc;
+		} catch (DatastoreException | ReservationConflictException e) {
+			// the company changed since it was loaded
+			logger.log(Level.WARNING, "<" + crcName + "> Batch commit failed, confirming one by one", e);
+			confirmOneByOne(group);
+			// the company holds the reservations of the failed commit
+			return null;
+		} finally {
+			if (tx.isActive())
+				tx.rollback();
+		}
+	}
+
+	private void confirmOneByOne(List<Leased> requests) {
+		for (Leased request : requests) {
+			Transaction tx = Datastores.get().newTransaction();
+			boolean confirmed = false;
+			try {
+				if (tx.get(request.outcomeKey) != null)
+					continue;
+				CarRentalCompany crc = loadCompany();
+				for (Quote quote : request.request.getQuotes())
+					crc.confirmQuote(quote, tx);
+				tx.put(QuoteTask.newOutcome(request.outcomeKey, true));
+				tx.commit();
+				confirmed = true;
+			} catch (ReservationException e) {
+				logger.log(Level.INFO, "<{0}> Confirmation for {1} failed: {2}",
+						new Object[] { crcName, request.request.getMailAddress(), e.getMessage() });
+			} catch (DatastoreException | ReservationConflictException e) {
+				// temporary, the retry of this pass confirms the request against a fresh load
+				if (!QuoteTask.isLastAttempt())
+					throw e;
+				logger.log(Level.WARNING, "<" + crcName + "> Confirmation for " + request.request.getMailAddress()
+						+ " failed on the last attempt", e);
+			} finally {
+				if (tx.isActive())
+					tx.rollback();
+			}
+			if (!confirmed)
+				putFailedOutcome(request.outcomeKey);
+		}
+	}
+
+	private static void putFailedOutcome(Key outcomeKey) {
+		Transaction tx = Datastores.get().newTransaction();
+		try {
+			if (tx.get(outcomeKey) == null) {
+				tx.put(QuoteTask.newOutcome(outcomeKey, false));
+				tx.commit();
+			}
+		} finally {
+			if (tx.isActive())
+				tx.rollback();
+		}
+	}
+
+	// throws if a notification cannot be queued, so the pass is retried
+	private void notifyRenters(List<Leased> requests) {
+		if (requests.isEmpty()) {
+			return;
+		}
+		Datastore datastore = Datastores.get();
+		List<Key> outcomeKeys = new ArrayList<>();
+		for (Leased request : requests) {
+			outcomeKeys.add(request.outcomeKey);
+		}
+		List<Entity> outcomes = datastore.fetch(outcomeKeys);
+
+		for (int i = 0; i < requests.size(); i++) {
+			Leased request = requests.get(i);
+			Entity outcome = outcomes.get(i);
+			if (outcome == null || outcome.getBoolean("notified")) {
+				continue;
+			}
+			QuoteTask.notifyRenter(request.handle.getName(), request.request.getMailAddress(),
+					!outcome.getBoolean("confirmed"), request.request.getQuotes());
+			datastore.put(Entity.newBuilder(outcome).set("notified", true).build());
+		}
+	}
+
+	private CarRentalCompany loadCompany() {
+		CarRentalCompany crc = new CarRentalCompany(Key.newBuilder(modelKey, "CarRentalCompany", crcName).build());
+		crc.setAllocationStrategy(allocationStrategy);
+		return crc;
+	}
+}
@@ -0,0 +1,20 @@
+package ds.gae.tasks;
+
+/**
+ * How a QuoteTask commits the quotes of a basket that spans several companies.
+ * Either way the basket is confirmed completely or not at all.
+ */
+public enum ConfirmationMode {
+
+	/**
+	 * All quotes are confirmed in one transaction over every company involved.
+	 */
+	SINGLE_TRANSACTION,
+
+	/**
+	 * Each company commits its own quotes in a separate transaction, the
+	 * companies in parallel. If one of them fails, the reservations already
+	 * committed for the others are deleted again.
+	 */
+	PER_COMPANY
+}
@@ -0,0 +1,51 @@
+package ds.gae.tasks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+import ds.gae.helper.Quote;
+
+/**
+ * One renter's request to confirm a basket of quotes of a single company,
+ * waiting on the pull queue to be picked up by a BatchConfirmTask.
+ */
+public class ConfirmationRequest implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String mailAddress;
+	private final Quote[] quotes;
+
+	public ConfirmationRequest(String mailAddress, Quote... quotes) {
+		this.mailAddress = mailAddress;
+		this.quotes = quotes;
+	}
+
+	public String getMailAddress() {
+		return mailAddress;
+	}
+
+	public Quote[] getQuotes() {
+		return quotes;
+	}
+
+	public byte[] toBytes() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(this);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	public static ConfirmationRequest fromBytes(byte[] payload) throws IOException, ClassNotFoundException {
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(payload))) {
+			return (ConfirmationRequest) in.readObject();
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package ds.gae.tasks;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.taskqueue.DeferredTask;
+
+import ds.gae.datastore.RpcStats;
+
+/**
+ * Runs deferred tasks in-process on a fixed number of worker threads, as a
+ * stand-in for the App Engine task queues when running outside App Engine.
+ * A task that throws is retried with exponential backoff, like the queues in
+ * queue.yaml.
+ */
+public class LocalTaskDispatcher implements TaskDispatcher {
+
+	private static final Logger logger = Logger.getLogger(LocalTaskDispatcher.class.getName());
+
+	// same as task_retry_limit in queue.yaml
+	private static final int MAX_RETRIES = 4;
+	private static final long MIN_BACKOFF_MILLIS = 100;
+
+	private final ScheduledExecutorService workers;
+
+	private int pending;
+
+	public LocalTaskDispatcher(int nbOfWorkers) {
+		workers = Executors.newScheduledThreadPool(nbOfWorkers);
+	}
+
+	@Override
+	public void dispatch(String queueName, DeferredTask task, long delayMillis) {
+		synchronized (this) {
+			pending++;
+		}
+		schedule(queueName, task, delayMillis, 0);
+	}
+
+	private void schedule(String queueName, DeferredTask task, long delayMillis, int retries) {
+		workers.schedule(() -> {
+			RpcStats stats = RpcStats.begin(queueName + "/" + task.getClass().getSimpleName());
+			try {
+				TaskDispatchers.runLocally(task, retries);
+			} catch (RuntimeException e) {
+				if (retries < MAX_RETRIES) {
+					schedule(queueName, task, MIN_BACKOFF_MILLIS << retries, retries + 1);
+					return;
+				}
+				logger.log(Level.WARNING, "<" + queueName + "> Task failed after " + retries + " retries", e);
+			} finally {
+				stats.end();
+			}
+			done();
+		}, delayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	private synchronized void done() {
+		pending--;
+		notifyAll();
+	}
+
+	/**
+	 * Wait until every dispatched task, including the tasks those dispatched,
+	 * has finished.
+	 *
+	 * @return false if tasks were still running when the timeout expired
+	 */
+	public synchronized boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (pending > 0) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				return false;
+			}
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+		return true;
+	}
+
+	public void shutdown() {
+		workers.shutdownNow();
+	}
+}
@@ -0,0 +1,118 @@
+package ds.gae.tasks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.taskqueue.DeferredTask;
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.FullEntity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.Query;
+import com.google.cloud.datastore.QueryResults;
+import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
+import com.google.cloud.datastore.Transaction;
+
+import ds.gae.datastore.Datastores;
+
+/**
+ * Moves the car types of one company from the old layout, a CarType child
+ * entity under every car, to the shared catalog: one CarType entity per type
+ * under the company, referred to by the "carType" property of each car.
+ * 
+ * Companies are readable in either layout, so the task can be interrupted and
+ * run again at any time. The company is marked catalogComplete once all of its
+ * cars refer to the catalog.
+ */
+public class MigrateCarTypesTask implements DeferredTask {
+
+	private static final Logger logger = Logger.getLogger(MigrateCarTypesTask.class.getName());
+
+	// maximum number of mutations per datastore call, also well below the 1000 keys of a lookup
+	private static final int BATCH_SIZE = 500;
+
+	private Key crcKey;
+
+	public MigrateCarTypesTask(Key crcKey) {
+		this.crcKey = crcKey;
+	}
+
+	@Override
+	public void run() {
+		Datastore datastore = Datastores.get();
+
+		Query<Entity> query = Query.newEntityQueryBuilder()
+				.setKind("CarType")
+				.setFilter(PropertyFilter.hasAncestor(crcKey))
+				.build();
+		QueryResults<Entity> results = datastore.run(query);
+
+		Map<String, Entity> catalog = new HashMap<>();
+		Map<Key, String> typeByCar = new HashMap<>();
+		List<Key> legacyKeys = new ArrayList<>();
+		while (results.hasNext()) {
+			Entity legacy = results.next();
+			Key parent = legacy.getKey().getParent();
+			if (parent.equals(crcKey)) {
+				continue;
+			}
+			String name = legacy.getKey().getName();
+			catalog.putIfAbsent(name, Entity.newBuilder(Key.newBuilder(crcKey, "CarType", name).build(), legacy).build());
+			typeByCar.put(parent, name);
+			legacyKeys.add(legacy.getKey());
+		}
+
+		if (legacyKeys.isEmpty()) {
+			markCatalogComplete(datastore);
+			return;
+		}
+
+		// catalog first, then the cars that refer to it, then the old copies
+		List<FullEntity<?>> types = new ArrayList<>(catalog.values());
+		for (int i = 0; i < types.size(); i += BATCH_SIZE) {
+			datastore.put(types.subList(i, Math.min(i + BATCH_SIZE, types.size())).toArray(new FullEntity<?>[0]));
+		}
+		List<Key> carKeys = new ArrayList<>(typeByCar.keySet());
+		for (int i = 0; i < carKeys.size(); i += BATCH_SIZE) {
+			migrateCars(datastore, carKeys.subList(i, Math.min(i + BATCH_SIZE, carKeys.size())), typeByCar);
+		}
+		// only now do queries on the carType property find every car
+		markCatalogComplete(datastore);
+		for (int i = 0; i < legacyKeys.size(); i += BATCH_SIZE) {
+			datastore.delete(legacyKeys.subList(i, Math.min(i + BATCH_SIZE, legacyKeys.size())).toArray(new Key[0]));
+		}
+
+		logger.log(Level.INFO, "<{0}> Migrated {1} car types of {2} cars to the company catalog",
+				new Object[] { crcKey.getName(), catalog.size(), typeByCar.size() });
+	}
+
+	// read and written in one transaction, so a booking committed meanwhile is not overwritten
+	private static void migrateCars(Datastore datastore, List<Key> carKeys, Map<Key, String> typeByCar) {
+		Transaction tx = datastore.newTransaction();
+		try {
+			List<Entity> updates = new ArrayList<>();
+			for (Entity car : tx.fetch(carKeys.toArray(new Key[carKeys.size()]))) {
+				if (car != null) {
+					updates.add(Entity.newBuilder(car).set("carType", typeByCar.get(car.getKey())).build());
+				}
+			}
+			tx.put(updates.toArray(new Entity[updates.size()]));
+			tx.commit();
+		} finally {
+			if (tx.isActive())
+				tx.rollback();
+		}
+	}
+
+	private void markCatalogComplete(Datastore datastore) {
+		Entity crc = datastore.get(crcKey);
+		if (crc == null || !crc.contains("catalogComplete") || !crc.getBoolean("catalogComplete")) {
+			datastore.put(Entity.newBuilder(crc != null ? crc : Entity.newBuilder(crcKey).build())
+					.set("catalogComplete", true).build());
+		}
+	}
+}
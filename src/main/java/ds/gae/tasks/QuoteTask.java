@@ -1,35 +1,74 @@
 package ds.gae.tasks;
 
-import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Properties;
-
-import javax.mail.Message;
-import javax.mail.MessagingException;
-import javax.mail.Session;
-import javax.mail.Transport;
-import javax.mail.internet.AddressException;
-import javax.mail.internet.InternetAddress;
-import javax.mail.internet.MimeMessage;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import com.google.appengine.api.taskqueue.DeferredTask;
-import com.google.appengine.api.taskqueue.DeferredTaskContext;
 import com.google.cloud.datastore.Datastore;
-import com.google.cloud.datastore.DatastoreOptions;
+import com.google.cloud.datastore.DatastoreException;
+import com.google.cloud.datastore.Entity;
 import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.KeyValue;
+import com.google.cloud.datastore.ListValue;
+import com.google.cloud.datastore.Query;
+import com.google.cloud.datastore.QueryResults;
+import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
 import com.google.cloud.datastore.Transaction;
+import com.google.cloud.datastore.Value;
 
+import ds.gae.CarRentalModel;
+import ds.gae.ReservationConflictException;
 import ds.gae.ReservationException;
+import ds.gae.allocation.CarAllocationStrategy;
+import ds.gae.allocation.RandomAllocation;
+import ds.gae.datastore.Datastores;
+import ds.gae.datastore.RpcStats;
 import ds.gae.entities.CarRentalCompany;
 import ds.gae.helper.*;
+import ds.gae.metrics.Counter;
+import ds.gae.metrics.LatencyHistogram;
+import ds.gae.metrics.Metrics;
+import ds.gae.notification.Notifications;
 
 public class QuoteTask implements DeferredTask {
 
+	private static final Logger logger = Logger.getLogger(QuoteTask.class.getName());
+	
+	// maximum number of companies confirmed at the same time
+	private static final int MAX_COMPANY_THREADS = 4;
+	
+	// attempts the queue makes before giving up, see task_retry_limit in queue.yaml
+	private static final int MAX_ATTEMPTS = 5;
+	
+	private static final String PHASE_METRIC = "ds_gae_quote_task_duration_seconds";
+	private static final String PHASE_HELP = "Time spent confirming a basket of quotes, by phase";
+	private static final LatencyHistogram totalLatency = Metrics.histogram(PHASE_METRIC, PHASE_HELP, "phase", "total");
+	private static final LatencyHistogram allocationLatency = Metrics.histogram(PHASE_METRIC, PHASE_HELP, "phase", "allocation");
+	private static final LatencyHistogram commitLatency = Metrics.histogram(PHASE_METRIC, PHASE_HELP, "phase", "commit");
+	private static final LatencyHistogram emailLatency = Metrics.histogram(PHASE_METRIC, PHASE_HELP, "phase", "email");
+	private static final String FAILURE_METRIC = "ds_gae_reservation_failures_total";
+	private static final String FAILURE_HELP = "Reservations that could not be made, by reason";
+	private static final Counter datastoreFailures = Metrics.counter(FAILURE_METRIC, FAILURE_HELP, "reason", "datastore");
+	private static final Counter errorFailures = Metrics.counter(FAILURE_METRIC, FAILURE_HELP, "reason", "error");
+	
 	private Quote[] quotes;
 	private Key modelKey;
 	private String mailAddress;
+	private ConfirmationMode mode = ConfirmationMode.SINGLE_TRANSACTION;
+	private CarAllocationStrategy allocationStrategy = new RandomAllocation();
+	
+	// idempotency key: every attempt of this task records its outcome under it
+	private String requestId = UUID.randomUUID().toString();
 	
 	public QuoteTask(Key modelKey, String mailAddress, Quote...quotes)
 	{
@@ -38,62 +77,306 @@ public class QuoteTask implements DeferredTask {
 		this.mailAddress = mailAddress;
 	}
 	
+	public QuoteTask(Key modelKey, String mailAddress, ConfirmationMode mode,
+			CarAllocationStrategy allocationStrategy, Quote...quotes)
+	{
+		this(modelKey, mailAddress, quotes);
+		this.mode = mode;
+		this.allocationStrategy = allocationStrategy;
+	}
+	
+	/**
+	 * Confirms the quotes at most once, however often the queue runs the task.
+	 * Errors are thrown so the queue retries the task with backoff, until the
+	 * last attempt records the basket as failed. The outcome record makes a
+	 * retry after a successful commit a no-op and keeps the renter from being
+	 * notified twice.
+	 */
 	@Override
 	public void run() {
-		DeferredTaskContext.setDoNotRetry(true);
-		Transaction tx = DatastoreOptions.getDefaultInstance().getService().newTransaction();
-		boolean failed = false;
+		long start = System.nanoTime();
+		try {
+			confirmOnce();
+		}
+		finally {
+			totalLatency.recordSince(start);
+		}
+	}
+	
+	private void confirmOnce() {
+		Datastore datastore = Datastores.get();
+		Key outcomeKey = Key.newBuilder(modelKey, "ConfirmationOutcome", requestId).build();
+		
+		Entity outcome = datastore.get(outcomeKey);
+		if(outcome == null)
+		{
+			try {
+				outcome = mode == ConfirmationMode.PER_COMPANY
+						? confirmPerCompany(outcomeKey)
+						: confirmInSingleTransaction(outcomeKey);
+			}
+			catch(RuntimeException e) {
+				// out of retries: the renter still hears that the basket failed
+				if(!isLastAttempt())
+					throw e;
+				logger.log(Level.WARNING, "Confirming quotes failed on the last attempt", e);
+				// conflicts were already counted by the company
+				if(e instanceof DatastoreException)
+					datastoreFailures.increment();
+				else if(!(e instanceof ReservationConflictException))
+					errorFailures.increment();
+				// companies that did commit in per-company mode still have to be undone
+				outcome = putOutcomeIfAbsent(outcomeKey, false, mode == ConfirmationMode.PER_COMPANY);
+			}
+		}
+		
+		if(isCompensationPending(outcome))
+			outcome = compensate(outcome);
+		
+		if(!outcome.getBoolean("notified"))
+		{
+			long emailStart = System.nanoTime();
+			// throws if the message could not be queued, so notified stays false and the task is retried
+			notifyRenter(requestId, mailAddress, !outcome.getBoolean("confirmed"), quotes);
+			datastore.put(Entity.newBuilder(outcome).set("notified", true).build());
+			emailLatency.recordSince(emailStart);
+		}
+	}
+	
+	static Entity newOutcome(Key outcomeKey, boolean confirmed) {
+		return newOutcome(outcomeKey, confirmed, false);
+	}
+	
+	private static Entity newOutcome(Key outcomeKey, boolean confirmed, boolean compensationPending) {
+		return Entity.newBuilder(outcomeKey)
+				.set("confirmed", confirmed)
+				.set("compensationPending", compensationPending)
+				.set("notified", false)
+				.set("created", System.currentTimeMillis())
+				.build();
+	}
+	
+	/**
+	 * Record the outcome unless another run of this task already did, and
+	 * return the outcome that holds.
+	 */
+	private static Entity putOutcomeIfAbsent(Key outcomeKey, boolean confirmed) {
+		return putOutcomeIfAbsent(outcomeKey, confirmed, false);
+	}
+	
+	private static Entity putOutcomeIfAbsent(Key outcomeKey, boolean confirmed, boolean compensationPending) {
+		Transaction tx = Datastores.get().newTransaction();
+		try {
+			Entity outcome = tx.get(outcomeKey);
+			if(outcome == null)
+			{
+				outcome = newOutcome(outcomeKey, confirmed, compensationPending);
+				tx.put(outcome);
+				tx.commit();
+			}
+			return outcome;
+		}
+		finally {
+			if(tx.isActive())
+				tx.rollback();
+		}
+	}
+	
+	static boolean isLastAttempt() {
+		return TaskDispatchers.getRetryCount() >= MAX_ATTEMPTS - 1;
+	}
+	
+	// delivery happens on its own queue, the booking is done once committed
+	static void notifyRenter(String messageId, String mailAddress, boolean failed, Quote... quotes) {
+		String status = "Confirmed";
+		if(failed) status = "Failed";
+		String subject = (quotes.length > 1 ? "Reservations " : "Reservation ") + status;
+		
+		StringBuilder sb = new StringBuilder(status + " reservations:\n");
+		for(Quote q : quotes)
+		{
+			sb.append("\t" + q.getCarType() + " car from " + q.getStartDate().toString() + " until " + q.getEndDate().toString() 
+					+ " at " + q.getRentalCompany() + " for a total of: " + q.getRentalPrice() + "\n");
+		}
+		
+		Notifications.enqueue(mailAddress, messageId, subject, sb.toString());
+	}
+	
+	/**
+	 * Confirm all quotes in one transaction. The outcome is read and written
+	 * in that transaction, so of two runs of this task that overlap only one
+	 * can commit.
+	 */
+	private Entity confirmInSingleTransaction(Key outcomeKey) {
+		Transaction tx = Datastores.get().newTransaction();
 		Map<String, CarRentalCompany> crcMap = new HashMap<>();
 		
 		try {
+			Entity outcome = tx.get(outcomeKey);
+			if(outcome != null)
+				return outcome;
 			
+			long allocationStart = System.nanoTime();
 			for(Quote quote : quotes)
 			{
 				String crcName = quote.getRentalCompany();
 				if(crcMap.keySet().contains(crcName) == false)
 				{
-					crcMap.put(crcName, new CarRentalCompany(Key.newBuilder(modelKey, "CarRentalCompany", crcName).build()));
+					crcMap.put(crcName, loadCompany(crcName));
 				}
 				
 				CarRentalCompany crc = crcMap.get(crcName);
-				System.out.println("opening crc");	
 				crc.confirmQuote(quote, tx);
 			}
+			// the outcome commits together with the reservations
+			outcome = newOutcome(outcomeKey, true);
+			tx.put(outcome);
+			allocationLatency.recordSince(allocationStart);
+			
+			long commitStart = System.nanoTime();
 			tx.commit();
+			commitLatency.recordSince(commitStart);
+			
+			for(String crcName : crcMap.keySet())
+				CarRentalModel.get().invalidateCompany(crcName);
+			return outcome;
+		}
+		catch(ReservationException e) {
+			logger.log(Level.INFO, "Confirming quotes failed: {0}", e.getMessage());
 		}
-		catch(Exception e) {
-			failed = true;
-			tx.rollback();
-			e.printStackTrace();
+		finally {
+			if(tx.isActive())
+				tx.rollback();
 		}
+		// an overlapping run may have taken the cars and confirmed the quotes itself
+		return putOutcomeIfAbsent(outcomeKey, false);
+	}
+	
+	private Entity confirmPerCompany(Key outcomeKey) {
+		Map<String, List<Quote>> quotesByCompany = new LinkedHashMap<>();
+		for(Quote quote : quotes)
+			quotesByCompany.computeIfAbsent(quote.getRentalCompany(), k -> new ArrayList<>()).add(quote);
+		
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(quotesByCompany.size(), MAX_COMPANY_THREADS));
+		Map<String, Future<Entity>> confirmations = new LinkedHashMap<>();
+		for(Map.Entry<String, List<Quote>> entry : quotesByCompany.entrySet())
+			confirmations.put(entry.getKey(), executor.submit(
+					RpcStats.propagate(() -> confirmCompany(outcomeKey, entry.getKey(), entry.getValue()))));
+		executor.shutdown();
 		
-		Session session = Session.getDefaultInstance(new Properties());
+		boolean failed = false;
+		RuntimeException transientFailure = null;
+		for(Map.Entry<String, Future<Entity>> confirmation : confirmations.entrySet())
+		{
+			try {
+				confirmation.getValue().get();
+			}
+			catch(ExecutionException e) {
+				failed = true;
+				if(e.getCause() instanceof DatastoreException || e.getCause() instanceof ReservationConflictException)
+					transientFailure = (RuntimeException) e.getCause();
+				logger.log(Level.WARNING, "<" + confirmation.getKey() + "> Confirming quotes failed", e.getCause());
+			}
+			catch(InterruptedException e) {
+				failed = true;
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		for(String crcName : quotesByCompany.keySet())
+			CarRentalModel.get().invalidateCompany(crcName);
+		
+		// a retry finds the markers of the companies that did commit and reuses them
+		if(transientFailure != null)
+			throw transientFailure;
+		// the failure is recorded before anything is undone, so the undo survives a crash
+		return putOutcomeIfAbsent(outcomeKey, !failed, failed);
+	}
+	
+	/**
+	 * Confirm the quotes of one company in its own transaction, together with a
+	 * marker listing the new reservations. A retry finds the marker and reuses
+	 * those reservations instead of making new ones.
+	 */
+	private Entity confirmCompany(Key outcomeKey, String crcName, List<Quote> companyQuotes) throws ReservationException {
+		Key markerKey = Key.newBuilder(outcomeKey, "CompanyOutcome", crcName).build();
+		Transaction tx = Datastores.get().newTransaction();
 		try {
-			Message msg = new MimeMessage(session);
-			InternetAddress adminEmail = new InternetAddress("admin@adminmail.com", "Admin");
-			InternetAddress clientEmail = new InternetAddress(mailAddress);
-			msg.setFrom(adminEmail);
-			msg.addRecipient(Message.RecipientType.TO, clientEmail);
+			Entity marker = tx.get(markerKey);
+			if(marker != null)
+				return marker;
 			
-			String status = "Confirmed";
-			if(failed) status = "Failed";
-			if(quotes.length > 1) msg.setSubject("Reservations " + status);
-			else msg.setSubject("Reservation " + status);
+			long allocationStart = System.nanoTime();
+			CarRentalCompany crc = loadCompany(crcName);
+			List<KeyValue> reservations = new ArrayList<>();
+			for(Quote quote : companyQuotes)
+				reservations.add(KeyValue.of(crc.confirmQuote(quote, tx).getKey()));
+			marker = Entity.newBuilder(markerKey)
+					.set("reservations", ListValue.of(reservations))
+					.build();
+			tx.put(marker);
+			allocationLatency.recordSince(allocationStart);
 			
-			StringBuilder sb = new StringBuilder(status + " reservations:\n");
-			for(Quote q : quotes)
+			long commitStart = System.nanoTime();
+			tx.commit();
+			commitLatency.recordSince(commitStart);
+			return marker;
+		}
+		finally {
+			if(tx.isActive())
+				tx.rollback();
+		}
+	}
+	
+	private CarRentalCompany loadCompany(String crcName) {
+		CarRentalCompany crc = new CarRentalCompany(Key.newBuilder(modelKey, "CarRentalCompany", crcName).build());
+		crc.setAllocationStrategy(allocationStrategy);
+		return crc;
+	}
+	
+	private static boolean isCompensationPending(Entity outcome) {
+		return outcome.contains("compensationPending") && outcome.getBoolean("compensationPending");
+	}
+	
+	/**
+	 * Undo the companies that did commit, so the basket fails as a whole. The
+	 * CompanyOutcome markers under the outcome list their reservations. A
+	 * failure is thrown, so the queue retries until the outcome is no longer
+	 * pending; the renter is only notified after that.
+	 */
+	private Entity compensate(Entity outcome) {
+		Datastore datastore = Datastores.get();
+		Query<Entity> query = Query.newEntityQueryBuilder()
+				.setKind("CompanyOutcome")
+				.setFilter(PropertyFilter.hasAncestor(outcome.getKey()))
+				.build();
+		
+		try {
+			List<Key> keys = new ArrayList<>();
+			List<String> companies = new ArrayList<>();
+			QueryResults<Entity> markers = datastore.run(query);
+			while(markers.hasNext())
 			{
-				sb.append("\t" + q.getCarType() + " car from " + q.getStartDate().toString() + " until " + q.getEndDate().toString() 
-						+ " at " + q.getRentalCompany() + " for a total of: " + q.getRentalPrice() + "\n");
+				Entity marker = markers.next();
+				keys.add(marker.getKey());
+				companies.add(marker.getKey().getName());
+				for(Value<?> reservation : marker.getList("reservations"))
+					keys.add(((KeyValue) reservation).get());
 			}
-			msg.setText(sb.toString());
-			System.out.println(sb.toString());
+			if(!keys.isEmpty())
+				datastore.delete(keys.toArray(new Key[keys.size()]));
 			
-			Transport.send(msg);
+			outcome = datastore.put(Entity.newBuilder(outcome).set("compensationPending", false).build());
+			for(String crcName : companies)
+				CarRentalModel.get().invalidateCompany(crcName);
+			logger.log(Level.INFO, "Compensated {0} companies of a failed basket", companies.size());
+			return outcome;
 		}
-		catch(Exception e)
-		{
-			e.printStackTrace();
+		catch(DatastoreException e) {
+			if(isLastAttempt())
+				logger.log(Level.SEVERE, "Could not compensate the reservations of failed basket " + requestId
+						+ ", its outcome stays pending", e);
+			throw e;
 		}
 	}
 
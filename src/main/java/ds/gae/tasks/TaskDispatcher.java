@@ -0,0 +1,16 @@
+package ds.gae.tasks;
+
+import com.google.appengine.api.taskqueue.DeferredTask;
+
+/**
+ * Hands deferred tasks to a push queue.
+ */
+public interface TaskDispatcher {
+
+	/**
+	 * @param queueName    name of the queue, as declared in queue.yaml
+	 * @param task         the task to run
+	 * @param delayMillis  how long to wait before running the task
+	 */
+	void dispatch(String queueName, DeferredTask task, long delayMillis);
+}
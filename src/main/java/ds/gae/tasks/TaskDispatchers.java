@@ -0,0 +1,65 @@
+package ds.gae.tasks;
+
+import javax.servlet.http.HttpServletRequest;
+
+import com.google.appengine.api.taskqueue.DeferredTask;
+import com.google.appengine.api.taskqueue.DeferredTaskContext;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+
+/**
+ * The dispatcher used for all push tasks of the application. By default tasks
+ * go to the App Engine task queues; outside App Engine a LocalTaskDispatcher
+ * can stand in for them.
+ */
+public final class TaskDispatchers {
+
+	// retries of the task running on this thread, set by a LocalTaskDispatcher
+	private static final ThreadLocal<Integer> localRetryCount = new ThreadLocal<>();
+
+	private static TaskDispatcher dispatcher = (queueName, task, delayMillis) -> QueueFactory.getQueue(queueName)
+			.add(TaskOptions.Builder.withPayload(task).countdownMillis(delayMillis));
+
+	private TaskDispatchers() {
+	}
+
+	public static TaskDispatcher get() {
+		return dispatcher;
+	}
+
+	public static void set(TaskDispatcher dispatcher) {
+		TaskDispatchers.dispatcher = dispatcher;
+	}
+
+	public static void dispatch(String queueName, DeferredTask task) {
+		dispatcher.dispatch(queueName, task, 0);
+	}
+
+	public static void dispatch(String queueName, DeferredTask task, long delayMillis) {
+		dispatcher.dispatch(queueName, task, delayMillis);
+	}
+
+	/**
+	 * How often the task running on the current thread was retried before this
+	 * attempt: the retry count of the App Engine task queue, or of the
+	 * LocalTaskDispatcher running it, and 0 when the task is called directly.
+	 */
+	public static int getRetryCount() {
+		HttpServletRequest request = DeferredTaskContext.getCurrentRequest();
+		if (request != null) {
+			String retryCount = request.getHeader("X-AppEngine-TaskRetryCount");
+			return retryCount == null ? 0 : Integer.parseInt(retryCount);
+		}
+		Integer retryCount = localRetryCount.get();
+		return retryCount == null ? 0 : retryCount;
+	}
+
+	static void runLocally(DeferredTask task, int retryCount) {
+		localRetryCount.set(retryCount);
+		try {
+			task.run();
+		} finally {
+			localRetryCount.remove();
+		}
+	}
+}
@@ -1,27 +1,164 @@
 package ds.gae.view;
 
-import java.text.SimpleDateFormat;
+import java.io.IOException;
+import java.io.Writer;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.format.ResolverStyle;
+import java.util.Date;
 
 public final class Tools {
-    public static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("dd.MM.yyyy");
-    
+    // immutable, so one instance is safely shared by all request threads
+    public static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("dd.MM.uuuu")
+            .withResolverStyle(ResolverStyle.STRICT);
+
+    // day and month may have one or two digits, as SimpleDateFormat accepted
+    private static final DateTimeFormatter INPUT_FORMAT = DateTimeFormatter.ofPattern("d.M.uuuu")
+            .withResolverStyle(ResolverStyle.STRICT);
+
+    private static final ZoneId ZONE = ZoneId.systemDefault();
+
+    private Tools() {
+    }
+
+    /**
+     * Parses a date in the form dd.MM.yyyy, or d.M.yyyy, to the start of that
+     * day.
+     *
+     * @param text Input string
+     * @return the parsed date
+     * @throws DateTimeParseException if the text is not a valid date
+     */
+    public static Date parseDate(String text) {
+        return Date.from(LocalDate.parse(text, INPUT_FORMAT).atStartOfDay(ZONE).toInstant());
+    }
+
+    public static String formatDate(Date date) {
+        return DATE_FORMAT.format(toLocalDate(date));
+    }
+
+    public static void writeDate(Writer out, Date date) throws IOException {
+        writeDate(out, date.getTime());
+    }
+
+    /**
+     * Writes a date, given in milliseconds since the epoch, in the form
+     * dd.MM.yyyy without building a string.
+     */
+    public static void writeDate(Writer out, long millis) throws IOException {
+        LocalDate day = Instant.ofEpochMilli(millis).atZone(ZONE).toLocalDate();
+        writeTwoDigits(out, day.getDayOfMonth());
+        out.write('.');
+        writeTwoDigits(out, day.getMonthValue());
+        out.write('.');
+        int year = day.getYear();
+        writeTwoDigits(out, year / 100);
+        writeTwoDigits(out, year % 100);
+    }
+
+    private static LocalDate toLocalDate(Date date) {
+        return date.toInstant().atZone(ZONE).toLocalDate();
+    }
+
+    private static void writeTwoDigits(Writer out, int value) throws IOException {
+        out.write('0' + value / 10);
+        out.write('0' + value % 10);
+    }
+
     /**
      * Converts plain text to HTML-encoded text
-     * 
+     *
      * @param plainText Input string
      * @return HTML-encoded text
      */
     public static String encodeHTML(String plainText) {
-        StringBuffer out = new StringBuffer();
-        for(int i=0; i<plainText.length(); i++) {
+        int first = firstToEncode(plainText);
+        if(first == plainText.length()) {
+            return plainText;
+        }
+        StringBuilder out = new StringBuilder(plainText.length() + 16);
+        out.append(plainText, 0, first);
+        for(int i=first; i<plainText.length(); i++) {
             char c = plainText.charAt(i);
-            if(c > 127 || c=='"' || c=='<' || c=='>') {
-               out.append("&#"+(int)c+";");
+            if(c == '\r' && i + 1 < plainText.length() && plainText.charAt(i + 1) == '\n') {
+                continue;
+            }
+            if(c == '\n') {
+                out.append("<br />");
+            }
+            else if(needsEncoding(c)) {
+                int codePoint = plainText.codePointAt(i);
+                out.append("&#").append(codePoint).append(';');
+                i += Character.charCount(codePoint) - 1;
             }
             else {
                 out.append(c);
             }
         }
-        return out.toString().replaceAll("(\r\n|\n)", "<br />");
+        return out.toString();
+    }
+
+    /**
+     * Writes plain text HTML-encoded to the given writer, in one pass and
+     * without intermediate strings.
+     *
+     * @param out       Output, typically the JSP writer
+     * @param plainText Input string
+     */
+    public static void encodeHTML(Writer out, String plainText) throws IOException {
+        if(plainText == null) {
+            return;
+        }
+        int run = 0;
+        for(int i=0; i<plainText.length(); i++) {
+            char c = plainText.charAt(i);
+            if(c != '\n' && c != '\r' && !needsEncoding(c)) {
+                continue;
+            }
+            out.write(plainText, run, i - run);
+            if(c == '\r' && i + 1 < plainText.length() && plainText.charAt(i + 1) == '\n') {
+                run = i + 1;
+                continue;
+            }
+            if(c == '\n') {
+                out.write("<br />");
+            }
+            else if(c == '\r') {
+                out.write(c);
+            }
+            else {
+                int codePoint = plainText.codePointAt(i);
+                out.write("&#");
+                writeNumber(out, codePoint);
+                out.write(';');
+                i += Character.charCount(codePoint) - 1;
+            }
+            run = i + 1;
+        }
+        out.write(plainText, run, plainText.length() - run);
+    }
+
+    private static int firstToEncode(String plainText) {
+        for(int i=0; i<plainText.length(); i++) {
+            char c = plainText.charAt(i);
+            if(c == '\n' || c == '\r' || needsEncoding(c)) {
+                return i;
+            }
+        }
+        return plainText.length();
+    }
+
+    private static boolean needsEncoding(char c) {
+        return c > 127 || c == '"' || c == '\'' || c == '<' || c == '>' || c == '&';
+    }
+
+    private static void writeNumber(Writer out, int value) throws IOException {
+        if(value >= 10) {
+            writeNumber(out, value / 10);
+        }
+        out.write('0' + value % 10);
     }
 }
@@ -1,11 +1,14 @@
-<%@page import="java.util.List"%>
 <%@page import="ds.gae.CarRentalModel"%>
 <%@page import="ds.gae.entities.Reservation"%>
+<%@page import="ds.gae.helper.ReservationOrder"%>
+<%@page import="ds.gae.helper.ReservationPage"%>
 <%@page import="ds.gae.view.JSPSite"%>
 <%@page import="ds.gae.view.Tools"%>
 
 <%@ page language="java" contentType="text/html; charset=UTF-8" pageEncoding="UTF-8"%>
 
+<%! private static final int PAGE_SIZE = 25; %>
+
 <% session.setAttribute("currentPage", JSPSite.RESERVATIONS); %>
 <% String renter = (String) session.getAttribute("renter"); %>
 
@@ -21,13 +24,20 @@
                 <th>Rental Period</th>
                 <th>Rental Price</th>			
             </tr>
-            <% List<Reservation> reservations = CarRentalModel.get().getReservations(renter); %>
-            <% if ( reservations != null && reservations.size() > 0) { %>
-                <% for (Reservation r : reservations) { %>
+            <% ReservationPage bookings;
+               try {
+                   bookings = CarRentalModel.get().getReservations(renter, ReservationOrder.UPCOMING_FIRST,
+                           PAGE_SIZE, request.getParameter("page"));
+               } catch (IllegalArgumentException e) {
+                   // a stale or edited link, start again at the first page
+                   bookings = CarRentalModel.get().getReservations(renter, ReservationOrder.UPCOMING_FIRST, PAGE_SIZE, null);
+               } %>
+            <% if (!bookings.getReservations().isEmpty()) { %>
+                <% for (Reservation r : bookings.getReservations()) { %>
                     <tr>
-                        <td><%= r.getRentalCompany()%></td>
-                        <td><%= r.getCarType()%>/<%= r.getCarId()%></td>
-                        <td><%= Tools.DATE_FORMAT.format(r.getStartDate()) %> - <%= Tools.DATE_FORMAT.format(r.getEndDate())%></td>
+                        <td><% Tools.encodeHTML(out, r.getRentalCompany()); %></td>
+                        <td><% Tools.encodeHTML(out, r.getCarType()); %>/<%= r.getCarId()%></td>
+                        <td><% Tools.writeDate(out, r.getStartTime()); %> - <% Tools.writeDate(out, r.getEndTime()); %></td>
                         <td class="numbers"><%= r.getRentalPrice()%> €</td>
                     </tr>
                 <% } %>
@@ -37,6 +47,14 @@
                 </tr>
             <% } %>
         </table>
+        <% if (request.getParameter("page") != null || bookings.hasNextPage()) { %>
+            <p>
+                <a href="<%= JSPSite.RESERVATIONS.url() %>">First page</a>
+                <% if (bookings.hasNextPage()) { %>
+                    | <a href="<%= JSPSite.RESERVATIONS.url() %>?page=<%= bookings.getNextPageToken() %>">Next page</a>
+                <% } %>
+            </p>
+        <% } %>
     </div>
 </div>
 
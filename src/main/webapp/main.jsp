@@ -57,8 +57,8 @@
                     <% for (Quote q : quotesForCrc) { %>
                         <tr>
                             <td><%= q.getCarType()%></td>
-                            <td><%= Tools.DATE_FORMAT.format(q.getStartDate())%></td>
-                            <td><%= Tools.DATE_FORMAT.format(q.getEndDate())%></td>
+                            <td><% Tools.writeDate(out, q.getStartDate()); %></td>
+                            <td><% Tools.writeDate(out, q.getEndDate()); %></td>
                             <td class="numbers"><%= q.getRentalPrice()%> €</td>
                         </tr>
                     <% } %>
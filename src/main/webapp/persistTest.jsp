@@ -3,6 +3,8 @@
 <%@page import="ds.gae.entities.Reservation"%>
 <%@page import="ds.gae.entities.CarType"%>
 <%@page import="ds.gae.entities.Reservation"%>
+<%@page import="ds.gae.helper.ReservationOrder"%>
+<%@page import="ds.gae.helper.ReservationPage"%>
 <%@page import="ds.gae.view.JSPSite"%>
 <%@page import="ds.gae.view.Tools"%>
 
@@ -12,6 +14,8 @@
 
 <%@ page language="java" contentType="text/html; charset=UTF-8" pageEncoding="UTF-8"%>
 
+<%! private static final int PAGE_SIZE = 50; %>
+
 <% session.setAttribute("currentPage", JSPSite.PERSIST_TEST); %>
 <% String renter = (String) session.getAttribute("renter"); %>
 
@@ -68,7 +72,15 @@
                 <th>Rental Period</th>
                 <th>Rental Price</th>	
             </tr>
-            <% List<Reservation> reservations = CarRentalModel.get().getReservations(renter); %>
+            <% ReservationPage bookings;
+               try {
+                   bookings = CarRentalModel.get().getReservations(renter, ReservationOrder.CHRONOLOGICAL,
+                           PAGE_SIZE, request.getParameter("page"));
+               } catch (IllegalArgumentException e) {
+                   // a stale or edited link, start again at the first page
+                   bookings = CarRentalModel.get().getReservations(renter, ReservationOrder.CHRONOLOGICAL, PAGE_SIZE, null);
+               } %>
+            <% List<Reservation> reservations = bookings.getReservations(); %>
             <% if (reservations.isEmpty()) { %>
                 <tr>
                     <td colspan="4">No Reservations</td>
@@ -76,14 +88,19 @@
             <% } else { %>
                 <% for (Reservation r : reservations) { %>
                     <tr>
-                        <td><%= r.getRentalCompany()%></td>
-                        <td><%= r.getCarType()%>/<%= r.getCarId()%></td>
-                        <td><%= Tools.DATE_FORMAT.format(r.getStartDate()) %> - <%= Tools.DATE_FORMAT.format(r.getEndDate())%></td>
+                        <td><% Tools.encodeHTML(out, r.getRentalCompany()); %></td>
+                        <td><% Tools.encodeHTML(out, r.getCarType()); %>/<%= r.getCarId()%></td>
+                        <td><% Tools.writeDate(out, r.getStartTime()); %> - <% Tools.writeDate(out, r.getEndTime()); %></td>
                         <td class="numbers"><%= r.getRentalPrice()%> €</td>
                     </tr>
                 <% } %>
             <% } %>
         </table>
+        <% if (bookings.hasNextPage()) { %>
+            <p>
+                <a href="<%= JSPSite.PERSIST_TEST.url() %>?page=<%= bookings.getNextPageToken() %>">Next page</a>
+            </p>
+        <% } %>
     </div>
     
     <h2>Summary</h2>
@@ -103,7 +120,7 @@
             <% } %>
         </table>
         <p class="stress">
-            Reservations: <%= reservations.size() %>
+            Reservations on this page: <%= reservations.size() %>
         </p>
     </div>
 </div>
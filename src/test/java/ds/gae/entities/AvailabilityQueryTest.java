@@ -0,0 +1,149 @@
+package ds.gae.entities;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.cloud.datastore.Cursor;
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.QueryResults;
+import com.google.cloud.datastore.StructuredQuery;
+import com.google.datastore.v1.QueryResultBatch.MoreResultsType;
+
+import ds.gae.datastore.AccountingDatastore;
+import ds.gae.datastore.RpcStats;
+import ds.gae.helper.Quote;
+import ds.gae.helper.ReservationConstraints;
+
+/**
+ * The datastore calls of a quote on the fast path, counted in an RpcStats
+ * scope over a datastore that answers from memory.
+ */
+public class AvailabilityQueryTest {
+
+    private static final long DAY = 1000 * 60 * 60 * 24L;
+
+    private final Key crcKey = Key.newBuilder("test", "CarRentalCompany", "Hertz").build();
+    private final Key typeKey = Key.newBuilder(crcKey, "CarType", "Compact").build();
+    private final Key carKey = Key.newBuilder(crcKey, "Car", 1).build();
+
+    private final Map<Key, Entity> entities = new HashMap<>();
+    private RpcStats stats;
+
+    @Before
+    public void setUp() {
+        entities.put(typeKey, Entity.newBuilder(typeKey)
+                .set("nbOfSeats", 4)
+                .set("smokingAllowed", false)
+                .set("rentalPricePerDay", 50.0)
+                .set("trunkSpace", 300.0)
+                .build());
+        stats = RpcStats.begin("test");
+    }
+
+    @After
+    public void tearDown() {
+        stats.end();
+    }
+
+    @Test
+    public void quoteTakesOneLookupAndTwoQueries() throws Exception {
+        entities.put(crcKey, Entity.newBuilder(crcKey).set("catalogComplete", true).build());
+
+        Quote quote = newQuery().createQuote(constraints(), "renter@example.com");
+
+        assertNotNull(quote);
+        assertEquals(100.0, quote.getRentalPrice(), 0.0);
+        assertEquals(1, stats.getGets());
+        assertEquals(2, stats.getQueries());
+        assertEquals(3, stats.getRpcs());
+    }
+
+    @Test
+    public void incompleteCatalogStopsAfterTheLookup() throws Exception {
+        entities.put(crcKey, Entity.newBuilder(crcKey).build());
+
+        assertNull(newQuery().createQuote(constraints(), "renter@example.com"));
+        assertEquals(1, stats.getRpcs());
+    }
+
+    private AvailabilityQuery newQuery() {
+        return new AvailabilityQuery(new AccountingDatastore(inMemoryDatastore()), crcKey);
+    }
+
+    private ReservationConstraints constraints() {
+        long start = System.currentTimeMillis() + 10 * DAY;
+        return new ReservationConstraints(new Date(start), new Date(start + 2 * DAY), "Compact");
+    }
+
+    // answers lookups from the map, finds one car and no reservations
+    @SuppressWarnings("unchecked")
+    private Datastore inMemoryDatastore() {
+        return (Datastore) Proxy.newProxyInstance(Datastore.class.getClassLoader(), new Class<?>[] { Datastore.class },
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                    case "fetch":
+                        List<Entity> result = new ArrayList<>();
+                        for (Key key : (Iterable<Key>) args[0])
+                            result.add(entities.get(key));
+                        return result;
+                    case "run":
+                        String kind = ((StructuredQuery<?>) args[0]).getKind();
+                        return results("Car".equals(kind) ? Collections.singletonList(carKey) : Collections.emptyList());
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    private static <T> QueryResults<T> results(List<T> values) {
+        Iterator<T> it = values.iterator();
+        return new QueryResults<T>() {
+
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public T next() {
+                return it.next();
+            }
+
+            @Override
+            public Class<?> getResultClass() {
+                return Object.class;
+            }
+
+            @Override
+            public Cursor getCursorAfter() {
+                return null;
+            }
+
+            @Override
+            public int getSkippedResults() {
+                return 0;
+            }
+
+            @Override
+            public MoreResultsType getMoreResults() {
+                return MoreResultsType.NO_MORE_RESULTS;
+            }
+        };
+    }
+}
@@ -0,0 +1,78 @@
+package ds.gae.helper;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class AvailabilityCalendarTest {
+
+	private static final long DAY = 1000 * 60 * 60 * 24L;
+
+	@Test
+	public void unknownTypeIsFullyBooked() {
+		assertTrue(new AvailabilityCalendar().isFullyBooked("Compact", 0, DAY));
+	}
+
+	@Test
+	public void onlyWholeDaysCount() {
+		AvailabilityCalendar calendar = new AvailabilityCalendar();
+		calendar.addCar("Compact");
+		// all of day 1, and parts of days 0 and 2
+		calendar.book("Compact", DAY / 2, 2 * DAY + DAY / 2);
+
+		assertTrue(calendar.isFullyBooked("Compact", DAY, DAY));
+		assertTrue(calendar.isFullyBooked("Compact", 0, 3 * DAY));
+		assertFalse(calendar.isFullyBooked("Compact", 0, DAY - 1));
+		assertFalse(calendar.isFullyBooked("Compact", 2 * DAY, 3 * DAY));
+	}
+
+	@Test
+	public void closedEndCoversTheLastMillisecondOfTheDay() {
+		AvailabilityCalendar calendar = new AvailabilityCalendar();
+		calendar.addCar("Compact");
+		calendar.book("Compact", 0, DAY - 1);
+
+		assertTrue(calendar.isFullyBooked("Compact", DAY - 1, DAY - 1));
+		assertFalse(calendar.isFullyBooked("Compact", DAY, 2 * DAY));
+	}
+
+	@Test
+	public void fullyBookedOnlyWhenEveryCarIs() {
+		AvailabilityCalendar calendar = new AvailabilityCalendar();
+		calendar.addCar("Compact");
+		calendar.addCar("Compact");
+		calendar.book("Compact", 0, 3 * DAY - 1);
+
+		assertFalse(calendar.isFullyBooked("Compact", 0, 3 * DAY - 1));
+		calendar.book("Compact", DAY, 2 * DAY - 1);
+		assertTrue(calendar.isFullyBooked("Compact", 0, 3 * DAY - 1));
+		assertFalse(calendar.isFullyBooked("Compact", 2 * DAY, 3 * DAY - 1));
+	}
+
+	@Test
+	public void releaseUndoesBook() {
+		AvailabilityCalendar calendar = new AvailabilityCalendar();
+		calendar.addCar("Compact");
+		calendar.book("Compact", 5 * DAY, 8 * DAY - 1);
+		// grows the calendar to earlier days
+		calendar.book("Compact", DAY, 3 * DAY - 1);
+
+		calendar.release("Compact", 5 * DAY, 8 * DAY - 1);
+		assertFalse(calendar.isFullyBooked("Compact", 5 * DAY, 8 * DAY - 1));
+		assertTrue(calendar.isFullyBooked("Compact", 2 * DAY, 2 * DAY));
+
+		calendar.release("Compact", DAY, 3 * DAY - 1);
+		assertFalse(calendar.isFullyBooked("Compact", 0, 10 * DAY));
+	}
+
+	@Test
+	public void daysBeforeTheEpochAreKeptApart() {
+		AvailabilityCalendar calendar = new AvailabilityCalendar();
+		calendar.addCar("Compact");
+		calendar.book("Compact", -DAY, -1);
+
+		assertTrue(calendar.isFullyBooked("Compact", -DAY / 2, -DAY / 2));
+		assertFalse(calendar.isFullyBooked("Compact", 0, DAY));
+	}
+}
@@ -0,0 +1,101 @@
+package ds.gae.helper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class IntervalIndexTest {
+
+	@Test
+	public void emptyIndexOverlapsNothing() {
+		IntervalIndex index = new IntervalIndex();
+
+		assertEquals(0, index.size());
+		assertFalse(index.overlaps(Long.MIN_VALUE, Long.MAX_VALUE));
+		assertFalse(index.remove(0, 10));
+	}
+
+	@Test
+	public void touchingIntervalsOverlapBecauseBothEndsAreClosed() {
+		IntervalIndex index = new IntervalIndex();
+		index.add(10, 20);
+
+		assertTrue(index.overlaps(0, 10));
+		assertTrue(index.overlaps(20, 30));
+		assertTrue(index.overlaps(15, 15));
+		assertFalse(index.overlaps(0, 9));
+		assertFalse(index.overlaps(21, 30));
+	}
+
+	@Test
+	public void longIntervalStartingEarlyIsFoundBehindShortOnes() {
+		IntervalIndex index = new IntervalIndex(1);
+		index.add(0, 100);
+		index.add(10, 11);
+		index.add(20, 21);
+
+		assertTrue(index.overlaps(50, 60));
+		assertFalse(index.overlaps(101, 200));
+	}
+
+	@Test
+	public void removedIntervalNoLongerOverlaps() {
+		IntervalIndex index = new IntervalIndex();
+		index.add(10, 20);
+		index.add(30, 40);
+
+		assertTrue(index.remove(10, 20));
+		assertEquals(1, index.size());
+		assertFalse(index.overlaps(10, 20));
+		assertTrue(index.overlaps(40, 50));
+	}
+
+	@Test
+	public void removeTakesOnlyTheExactInterval() {
+		IntervalIndex index = new IntervalIndex();
+		index.add(10, 20);
+		index.add(10, 20);
+		index.add(10, 30);
+
+		assertFalse(index.remove(10, 25));
+		assertTrue(index.remove(10, 30));
+		assertTrue(index.remove(10, 20));
+		assertTrue(index.overlaps(20, 20));
+		assertFalse(index.overlaps(21, 30));
+		assertTrue(index.remove(10, 20));
+		assertEquals(0, index.size());
+		assertFalse(index.overlaps(10, 20));
+	}
+
+	@Test
+	public void addAllMatchesAddingOneByOne() {
+		long[] starts = { 50, 0, 30, 30 };
+		long[] ends = { 60, 5, 45, 31 };
+		IntervalIndex batched = new IntervalIndex();
+		batched.add(10, 12);
+		batched.addAll(starts, ends);
+		IntervalIndex single = new IntervalIndex();
+		single.add(10, 12);
+		for (int i = 0; i < starts.length; i++) {
+			single.add(starts[i], ends[i]);
+		}
+
+		assertEquals(single.size(), batched.size());
+		for (long t = -5; t <= 70; t++) {
+			assertEquals("at " + t, single.overlaps(t, t), batched.overlaps(t, t));
+		}
+	}
+
+	@Test
+	public void slackMeasuresTheGapsToTheNeighbours() {
+		IntervalIndex index = new IntervalIndex();
+		index.add(0, 10);
+		index.add(40, 50);
+
+		assertEquals(10 + 15, index.slack(20, 25));
+		assertEquals(Long.MAX_VALUE / 4 + 1, index.slack(-100, -1));
+		assertEquals(5 + Long.MAX_VALUE / 4, index.slack(55, 60));
+	}
+}
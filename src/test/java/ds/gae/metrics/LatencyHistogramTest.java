@@ -0,0 +1,95 @@
+package ds.gae.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	private static LatencyHistogram newHistogram() {
+		return new LatencyHistogram("test_seconds", "test", null);
+	}
+
+	@Test
+	public void emptyHistogramReportsZero() {
+		LatencyHistogram histogram = newHistogram();
+
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getValueAtQuantile(0.5));
+		assertEquals(0, histogram.getValueAtQuantile(1.0));
+	}
+
+	@Test
+	public void smallValuesAreExact() {
+		LatencyHistogram histogram = newHistogram();
+		for (int micros = 0; micros < 64; micros++) {
+			histogram.recordNanos(micros * 1000L);
+		}
+
+		assertEquals(64, histogram.getCount());
+		assertEquals(0, histogram.getValueAtQuantile(0.0));
+		assertEquals(31, histogram.getValueAtQuantile(0.5));
+		assertEquals(63, histogram.getValueAtQuantile(1.0));
+	}
+
+	@Test
+	public void negativeDurationsCountAsZero() {
+		LatencyHistogram histogram = newHistogram();
+		histogram.recordNanos(-5000);
+
+		assertEquals(1, histogram.getCount());
+		assertEquals(0, histogram.getValueAtQuantile(1.0));
+	}
+
+	@Test
+	public void quantileIsCappedAtTheLargestRecordedValue() {
+		LatencyHistogram histogram = newHistogram();
+		histogram.recordNanos(100_000);
+
+		// 100 us shares its bucket with 101 us
+		assertEquals(101, LatencyHistogram.highestValueIn(LatencyHistogram.indexOf(100)));
+		assertEquals(100, histogram.getValueAtQuantile(0.99));
+	}
+
+	@Test
+	public void quantileRanksRoundUp() {
+		LatencyHistogram histogram = newHistogram();
+		for (int i = 0; i < 99; i++) {
+			histogram.recordNanos(10_000);
+		}
+		histogram.recordNanos(50_000);
+
+		assertEquals(10, histogram.getValueAtQuantile(0.99));
+		assertEquals(50, histogram.getValueAtQuantile(0.991));
+	}
+
+	@Test
+	public void bucketsAreContiguousAndWithinThreePercent() {
+		assertEquals(63, LatencyHistogram.indexOf(63));
+		assertEquals(64, LatencyHistogram.indexOf(64));
+		for (long micros = 0; micros < 1 << 20; micros++) {
+			int index = LatencyHistogram.indexOf(micros);
+			long highest = LatencyHistogram.highestValueIn(index);
+			assertTrue("bucket of " + micros, highest >= micros);
+			assertTrue("bucket of " + micros, highest - micros <= micros / 32);
+			assertEquals("bucket after " + micros, index + 1, LatencyHistogram.indexOf(highest + 1));
+		}
+	}
+
+	@Test
+	public void valuesFromTwoToThe36MicrosLandInTheLastBucket() {
+		int last = LatencyHistogram.indexOf(Long.MAX_VALUE);
+
+		// the last bucket of the range also takes everything above it
+		assertEquals(last, LatencyHistogram.indexOf(1L << 36));
+		assertEquals(last, LatencyHistogram.indexOf((1L << 36) - 1));
+		assertEquals(last - 1, LatencyHistogram.indexOf((1L << 36) - (1L << 30) - 1));
+		assertEquals(Long.MAX_VALUE, LatencyHistogram.highestValueIn(last));
+		assertEquals((1L << 36) - (1L << 30) - 1, LatencyHistogram.highestValueIn(last - 1));
+
+		LatencyHistogram histogram = newHistogram();
+		histogram.recordNanos((1L << 40) * 1000);
+		assertEquals(1L << 40, histogram.getValueAtQuantile(0.5));
+	}
+}